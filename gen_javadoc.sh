@@ -17,6 +17,6 @@ else
 fi
 echo "**************************************************************"
 
-if javadoc --source-path src/java -d javadoc net.adambruce.jpmq && [ $GENERATE_JAR = true ]; then
+if javadoc --source-path src/java -d javadoc net.adambruce.jpmq net.adambruce.jpmq.tools && [ $GENERATE_JAR = true ]; then
   jar --create --file jpmq-$JPMQ_VERSION-javadoc.jar -C javadoc/ .
 fi
\ No newline at end of file
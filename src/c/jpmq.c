@@ -13,8 +13,35 @@
 #include <time.h>
 #include <fcntl.h>
 #include <errno.h>
+#ifdef __linux__
+#include <poll.h>
+#endif
 
 #include "net_adambruce_jpmq_JPMQ.h"
+#include "net_adambruce_jpmq_JPMQTopic.h"
+#include "net_adambruce_jpmq_JPMQScheduler.h"
+#include "net_adambruce_jpmq_JPMQTracer.h"
+
+/**
+ * Converts JPMQ oflags into native fcntl flags. This step is necessary as
+ * different operating systems used different oflag values.
+ *
+ * @param oflag the JPMQ oflags
+ * @returns the native flags
+ */
+int parse_jpmq_flags(jint oflag)
+{
+	int flags;
+	flags = 0;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_RDONLY)   flags |= O_RDONLY;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_WRONLY)   flags |= O_WRONLY;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_RDWR)     flags |= O_RDWR;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_CLOEXEC)  flags |= O_CLOEXEC;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_CREAT)    flags |= O_CREAT;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_EXCL)     flags |= O_EXCL;
+	if(oflag & net_adambruce_jpmq_JPMQ_O_NONBLOCK) flags |= O_NONBLOCK;
+	return flags;
+}
 
 /**
  * Parses a JPMQAttributes object into a mq_attr struct.
@@ -34,7 +61,7 @@ void parse_jpmq_attr(struct mq_attr *attr, jobject jpmq_attr, JNIEnv *env)
   mq_msgsize_id = (*env)->GetFieldID(env, Jpmq_attr, "messageSize", "I");
   mq_curmsgs_id = (*env)->GetFieldID(env, Jpmq_attr, "currentMessages", "I");
 
-  attr->mq_flags   = (*env)->GetIntField(env, jpmq_attr, mq_flags_id);
+  attr->mq_flags   = parse_jpmq_flags((*env)->GetIntField(env, jpmq_attr, mq_flags_id));
   attr->mq_maxmsg  = (*env)->GetIntField(env, jpmq_attr, mq_maxmsg_id);
   attr->mq_msgsize = (*env)->GetIntField(env, jpmq_attr, mq_msgsize_id);
   attr->mq_curmsgs = (*env)->GetIntField(env, jpmq_attr, mq_curmsgs_id);
@@ -94,27 +121,6 @@ mqd_t from_universal_mqd_t(jbyteArray unimqdes, JNIEnv *env)
 	return mqdes;
 }
 
-/**
- * Converts JPMQ oflags into native fcntl flags. This step is necessary as
- * different operating systems used different oflag values.
- *
- * @param oflag the JPMQ oflags
- * @returns the native flags
- */
-int parse_jpmq_flags(jint oflag)
-{
-	int flags;
-	flags = 0;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_RDONLY)   flags |= O_RDONLY;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_WRONLY)   flags |= O_WRONLY;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_RDWR)     flags |= O_RDWR;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_CLOEXEC)  flags |= O_CLOEXEC;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_CREAT)    flags |= O_CREAT;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_EXCL)     flags |= O_EXCL;
-	if(oflag & net_adambruce_jpmq_JPMQ_O_NONBLOCK) flags |= O_NONBLOCK;
-	return flags;
-}
-
 /**
  * Implementation for the JPMQ::nativeOpen method.
  *
@@ -129,14 +135,17 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpen
 {
   const char *mq_name;
   mqd_t mqdes;
-  int flags;
+  int flags, error;
 
   flags = parse_jpmq_flags(oflag);
   mq_name = (*env)->GetStringUTFChars(env, name, NULL);
+  if(mq_name == NULL)
+    return NULL;
   mqdes = mq_open(mq_name, flags);
+  error = errno;
 
   if(mqdes == (mqd_t)-1) {
-      switch (errno) {
+      switch (error) {
           case EACCES:
               if (strrchr(mq_name, '/') != mq_name)
                   (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/AccessException"),
@@ -163,7 +172,7 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpen
               break;
           case ENOENT:
               if (strlen(mq_name) == 1)
-                  (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidArgumentException"),
+                  (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidValueException"),
                                    "Queue name is invalid (name was just / followed by no other characters).");
               else
                   (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueDoesNotExistException"),
@@ -174,8 +183,11 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpen
                                "Insufficient memory to open queue.");
               break;
       }
+      (*env)->ReleaseStringUTFChars(env, name, mq_name);
+      return NULL;
   }
 
+  (*env)->ReleaseStringUTFChars(env, name, mq_name);
   return to_universal_mqd_t(mqdes, env);
 }
 
@@ -195,15 +207,18 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpenWithAttribut
 	const char *mq_name;
 	mqd_t mqdes;
 	struct mq_attr mq_attrs;
-	int flags;
+	int flags, error;
 
 	flags = parse_jpmq_flags(oflag);
 	mq_name = (*env)->GetStringUTFChars(env, name, NULL);
+	if(mq_name == NULL)
+		return NULL;
 	parse_jpmq_attr(&mq_attrs, jpmq_attr, env);
 	mqdes = mq_open(mq_name, flags, mode, &mq_attrs);
+	error = errno;
 
 	if(mqdes == (mqd_t)-1) {
-        switch (errno) {
+        switch (error) {
             case EACCES:
                 if (strrchr(mq_name, '/') != mq_name)
                     (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/AccessException"),
@@ -233,7 +248,7 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpenWithAttribut
                                  "System message and file descriptor limit reached.");
                 break;
             case ENOENT:
-                (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidArgumentException"),
+                (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidValueException"),
                                  "Queue name is invalid (name was just / followed by no other characters).");
 
                 break;
@@ -246,8 +261,11 @@ JNIEXPORT jbyteArray JNICALL Java_net_adambruce_jpmq_JPMQ_nativeOpenWithAttribut
                                  "Insufficient space to create queue.");
                 break;
         }
+        (*env)->ReleaseStringUTFChars(env, name, mq_name);
+        return NULL;
     }
 
+	(*env)->ReleaseStringUTFChars(env, name, mq_name);
 	return to_universal_mqd_t(mqdes, env);
 }
 
@@ -290,14 +308,18 @@ JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeUnlink
 (JNIEnv *env, jobject obj, jstring name)
 {
       const char *mq_name;
-      int status;
+      int status, error;
 
       mq_name = (*env)->GetStringUTFChars(env, name, NULL);
+      if(mq_name == NULL)
+          return;
       status = mq_unlink(mq_name);
+      error = errno;
+      (*env)->ReleaseStringUTFChars(env, name, mq_name);
 
       if(status == -1)
       {
-          switch(errno)
+          switch(error)
           {
               case EACCES:
                   (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/AccessException"),
@@ -321,7 +343,7 @@ JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeUnlink
  * @param env pointer to the JNI environment
  * @param obj pointer to the JPMQ object
  * @param mqdes the message queue descriptor
- * @returns a JPMQAttributess object containing the message queue's attributes.
+ * @returns a JPMQAttributes object containing the message queue's attributes.
  */
 JNIEXPORT jobject JNICALL Java_net_adambruce_jpmq_JPMQ_nativeGetAttributes
 (JNIEnv *env, jobject obj, jbyteArray mqdes)
@@ -346,15 +368,16 @@ JNIEXPORT jobject JNICALL Java_net_adambruce_jpmq_JPMQ_nativeGetAttributes
                              "Invalid message queue descriptor.");
             break;
     }
+    return NULL;
   }
 
-  jpmq_attr_class = (*env)->FindClass(env, "JPMQAttributess");
+  jpmq_attr_class = (*env)->FindClass(env, "net/adambruce/jpmq/JPMQAttributes");
   constructor = (*env)->GetMethodID(env, jpmq_attr_class, "<init>", "(IIII)V");
   jpmq_attr_obj = (*env)->NewObject(env, jpmq_attr_class, constructor,
-				   attr.mq_flags,
-				   attr.mq_maxmsg,
-				   attr.mq_msgsize,
-				   attr.mq_curmsgs);
+				   (jint)((attr.mq_flags & O_NONBLOCK) ? net_adambruce_jpmq_JPMQ_O_NONBLOCK : 0),
+				   (jint)attr.mq_maxmsg,
+				   (jint)attr.mq_msgsize,
+				   (jint)attr.mq_curmsgs);
   return jpmq_attr_obj;
 }
 
@@ -364,7 +387,7 @@ JNIEXPORT jobject JNICALL Java_net_adambruce_jpmq_JPMQ_nativeGetAttributes
  * @param env pointer to the JNI environment
  * @param obj pointer to the JPMQ object
  * @param mqdes the message queue descriptor
- * @param jpmq_attr pointer to the JPMQAttributess object
+ * @param jpmq_attr pointer to the JPMQAttributes object
  */
 JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeSetAttributes
 (JNIEnv *env, jobject obj, jbyteArray mqdes, jobject jpmq_attr)
@@ -410,20 +433,32 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeReceive
   mqd_t unimqdes;
   char *buf;
   jstring str;
-  int status;
+  int status, error;
 
   unimqdes = from_universal_mqd_t(mqdes, env);
 
-  mq_getattr(unimqdes, &attr);
-  buf = (char*)malloc(attr.mq_msgsize + 1);
-  memset(buf, '\0', attr.mq_msgsize + 1);
+  if(mq_getattr(unimqdes, &attr) == -1)
+  {
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                     "Invalid message queue descriptor.");
+    return NULL;
+  }
+
+  buf = (char*)calloc(attr.mq_msgsize + 1, 1);
+  if(buf == NULL)
+  {
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                     "Unable to allocate receive buffer.");
+    return NULL;
+  }
   status = mq_receive(unimqdes, buf, attr.mq_msgsize + 1, NULL);
+  error = errno;
 
   if(status == -1)
   {
     free(buf);
 
-    switch(errno)
+    switch(error)
     {
         case EAGAIN:
             (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueEmptyException"),
@@ -441,7 +476,12 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeReceive
             (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
                              "Buffer was smaller than message size.");
             break;
+        default:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                             strerror(error));
+            break;
     }
+    return NULL;
   }
 
   str = (*env)->NewStringUTF(env, buf);
@@ -455,24 +495,30 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeReceive
  * @param env pointer to the JNI environment
  * @param obj pointer to the JPMQ object
  * @param mqdes the message queue descriptor
- * @param msg the String to send
- * @param length the length of the messaged
+ * @param msg the String to send, sent as its modified UTF-8 bytes
+ * @param priority the priority of the message
  */
 JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeSend
-(JNIEnv *env, jobject obj, jbyteArray mqdes, jstring msg, jint length, jint priority)
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jstring msg, jint priority)
 {
   const char *msgbuf;
   mqd_t unimqdes;
-  int status;
+  jsize length;
+  int status, error;
 
   unimqdes = from_universal_mqd_t(mqdes, env);
 
+  length = (*env)->GetStringUTFLength(env, msg);
   msgbuf = (*env)->GetStringUTFChars(env, msg, NULL);
+  if(msgbuf == NULL)
+    return;
   status = mq_send(unimqdes, msgbuf, length, priority);
+  error = errno;
+  (*env)->ReleaseStringUTFChars(env, msg, msgbuf);
 
   if(status == -1)
   {
-      switch(errno)
+      switch(error)
       {
           case EAGAIN:
               (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueFullException"),
@@ -494,6 +540,116 @@ JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeSend
   }
 }
 
+/**
+ * Implementation for the JPMQ::nativeReceiveBuffer method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQ object
+ * @param mqdes the message queue descriptor
+ * @param buffer the direct ByteBuffer to receive into
+ * @param offset the offset within the buffer to write the message
+ * @param capacity the number of bytes available from the offset
+ * @returns the length of the message received
+ */
+JNIEXPORT jint JNICALL Java_net_adambruce_jpmq_JPMQ_nativeReceiveBuffer
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jobject buffer, jint offset, jint capacity)
+{
+  mqd_t unimqdes;
+  char *buf;
+  ssize_t status;
+  int error;
+
+  unimqdes = from_universal_mqd_t(mqdes, env);
+  buf = (char*)(*env)->GetDirectBufferAddress(env, buffer);
+  status = mq_receive(unimqdes, buf + offset, capacity, NULL);
+  error = errno;
+
+  if(status == -1)
+  {
+    switch(error)
+    {
+        case EAGAIN:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueEmptyException"),
+                             "The queue is empty.");
+            break;
+        case EBADF:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                             "Invalid message queue descriptor.");
+            break;
+        case EINTR:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                             "The call was interrupted by a signal handler.");
+            break;
+        case EMSGSIZE:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
+                             "Buffer was smaller than message size.");
+            break;
+        default:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                             strerror(error));
+            break;
+    }
+    return 0;
+  }
+
+  return (jint)status;
+}
+
+/**
+ * Implementation for the JPMQ::nativeSendBuffer method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQ object
+ * @param mqdes the message queue descriptor
+ * @param buffer the direct ByteBuffer holding the message
+ * @param offset the offset of the message within the buffer
+ * @param length the length of the message
+ * @param priority the priority of the message
+ */
+JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeSendBuffer
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jobject buffer, jint offset, jint length, jint priority)
+{
+  const char *buf;
+  mqd_t unimqdes;
+  int status, error;
+
+  unimqdes = from_universal_mqd_t(mqdes, env);
+  buf = (const char*)(*env)->GetDirectBufferAddress(env, buffer);
+  status = mq_send(unimqdes, buf + offset, length, priority);
+  error = errno;
+
+  if(status == -1)
+  {
+      switch(error)
+      {
+          case EAGAIN:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueFullException"),
+                               "The message queue is full.");
+              break;
+          case EBADF:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                               "Invalid message queue descriptor.");
+              break;
+          case EINTR:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                               "The call was interrupted by a signal handler.");
+              break;
+          case EINVAL:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidValueException"),
+                               "Invalid message priority.");
+              break;
+          case EMSGSIZE:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
+                               "Provided message is longer than queue message size.");
+              break;
+          default:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                               strerror(error));
+              break;
+      }
+  }
+}
+
 /**
  * Implementation for the JPMQ::nativeTimedReceive method.
  *
@@ -511,21 +667,33 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedReceive
   struct timespec tspec;
   char *buf;
   jstring str;
-  int status;
+  int status, error;
 
   unimqdes = from_universal_mqd_t(mqdes, env);
 
   parse_jpmq_timespec(&tspec, timespec, env);
-  mq_getattr(unimqdes, &attr);
-  buf = (char*)malloc(attr.mq_msgsize + 1);
-  memset(buf, '\0', attr.mq_msgsize + 1);
+  if(mq_getattr(unimqdes, &attr) == -1)
+  {
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                     "Invalid message queue descriptor.");
+    return NULL;
+  }
+
+  buf = (char*)calloc(attr.mq_msgsize + 1, 1);
+  if(buf == NULL)
+  {
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                     "Unable to allocate receive buffer.");
+    return NULL;
+  }
   status = mq_timedreceive(unimqdes, buf, attr.mq_msgsize + 1, NULL, &tspec);
+  error = errno;
 
   if(status == -1)
   {
       free(buf);
 
-      switch(errno)
+      switch(error)
       {
           case EAGAIN:
               (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueEmptyException"),
@@ -551,7 +719,12 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedReceive
               (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/TimeoutException"),
                                "Call timed out before a message could be transferred.");
               break;
+          default:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                               strerror(error));
+              break;
       }
+      return NULL;
   }
 
   str = (*env)->NewStringUTF(env, buf);
@@ -559,33 +732,106 @@ JNIEXPORT jstring JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedReceive
   return str;
 }
 
+/**
+ * Implementation for the JPMQ::nativeTimedReceiveBuffer method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQ object
+ * @param mqdes the message queue descriptor
+ * @param buffer the direct ByteBuffer to receive into
+ * @param offset the offset within the buffer to write the message
+ * @param capacity the number of bytes available from the offset
+ * @param timespec pointer to the JPMQTimespec
+ * @returns the length of the message received
+ */
+JNIEXPORT jint JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedReceiveBuffer
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jobject buffer, jint offset, jint capacity,
+ jobject timespec)
+{
+  struct timespec tspec;
+  mqd_t unimqdes;
+  char *buf;
+  ssize_t status;
+  int error;
+
+  unimqdes = from_universal_mqd_t(mqdes, env);
+  parse_jpmq_timespec(&tspec, timespec, env);
+  buf = (char*)(*env)->GetDirectBufferAddress(env, buffer);
+  status = mq_timedreceive(unimqdes, buf + offset, capacity, NULL, &tspec);
+  error = errno;
+
+  if(status == -1)
+  {
+      switch(error)
+      {
+          case EAGAIN:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueEmptyException"),
+                               "The queue is empty.");
+              break;
+          case EBADF:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                               "Invalid message queue descriptor.");
+              break;
+          case EINTR:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                               "The call was interrupted by a signal handler.");
+              break;
+          case EINVAL:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidValueException"),
+                               "Invalid timeout.");
+              break;
+          case EMSGSIZE:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
+                               "Buffer was smaller than message size.");
+              break;
+          case ETIMEDOUT:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/TimeoutException"),
+                               "Call timed out before a message could be transferred.");
+              break;
+          default:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                               strerror(error));
+              break;
+      }
+      return 0;
+  }
+
+  return (jint)status;
+}
+
 /**
  * Implementation for the JPMQ::nativeTimedSend method.
  *
  * @param env pointer to the JNI environment
  * @param obj pointer to the JPMQ object
  * @param mqdes the message queue descriptor
- * @param msg the String to send
- * @param length the length of the message
+ * @param msg the String to send, sent as its modified UTF-8 bytes
+ * @param priority the priority of the message
+ * @param timespec pointer to the JPMQTimespec
  */
 JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedSend
-(JNIEnv *env, jobject obj, jbyteArray mqdes, jstring msg, jint length, jint priority,
- jobject timespec)
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jstring msg, jint priority, jobject timespec)
 {
   struct timespec tspec;
   mqd_t unimqdes;
   const char *msgbuf;
-  int status;
+  jsize length;
+  int status, error;
 
   unimqdes = from_universal_mqd_t(mqdes, env);
 
   parse_jpmq_timespec(&tspec, timespec, env);
+  length = (*env)->GetStringUTFLength(env, msg);
   msgbuf = (*env)->GetStringUTFChars(env, msg, NULL);
+  if(msgbuf == NULL)
+    return;
   status = mq_timedsend(unimqdes, msgbuf, length, priority, &tspec);
+  error = errno;
+  (*env)->ReleaseStringUTFChars(env, msg, msgbuf);
 
   if(status == -1)
   {
-      switch(errno)
+      switch(error)
       {
           case EAGAIN:
               (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueFullException"),
@@ -614,3 +860,427 @@ JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQ_nativeTimedSend
       }
   }
 }
+
+/**
+ * Returns the number of message priorities supported by the system.
+ *
+ * @returns one more than the highest valid priority
+ */
+long mq_priority_max(void)
+{
+  long max;
+  max = sysconf(_SC_MQ_PRIO_MAX);
+  if(max > 0)
+    return max;
+#ifdef MQ_PRIO_MAX
+  return MQ_PRIO_MAX;
+#else
+  return 32;
+#endif
+}
+
+/**
+ * Implementation for the JPMQ::nativePriorityMax method.
+ *
+ * @param env pointer to the JNI environment
+ * @param cls pointer to the JPMQ class
+ * @returns one more than the highest valid priority
+ */
+JNIEXPORT jint JNICALL Java_net_adambruce_jpmq_JPMQ_nativePriorityMax
+(JNIEnv *env, jclass cls)
+{
+  long max;
+  max = mq_priority_max();
+  return max > 0x7fffffffL ? 0x7fffffff : (jint)max;
+}
+
+/**
+ * Implementation for the JPMQTopic::nativePublish method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQTopic object
+ * @param mqdes_arr the message queue descriptors
+ * @param msg the String to send, sent as its modified UTF-8 bytes
+ * @param priority the priority of the message
+ * @param timespec pointer to the JPMQTimespec, or NULL to send without a timeout
+ * @param results receives the outcome for each descriptor
+ */
+JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQTopic_nativePublish
+(JNIEnv *env, jobject obj, jobjectArray mqdes_arr, jstring msg, jint priority,
+ jobject timespec, jintArray results)
+{
+  struct timespec tspec;
+  const char *msgbuf;
+  jbyteArray mqdes;
+  mqd_t unimqdes;
+  jint *status;
+  jsize count, length, i;
+  int ret;
+
+  count = (*env)->GetArrayLength(env, mqdes_arr);
+  if(count <= 0)
+    return;
+
+  /* Reject bad arguments before any subscriber is sent the message */
+  if(timespec != NULL)
+  {
+    parse_jpmq_timespec(&tspec, timespec, env);
+    if(tspec.tv_sec < 0 || tspec.tv_nsec < 0 || tspec.tv_nsec >= 1000000000)
+    {
+      (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InvalidValueException"),
+                       "Invalid timeout.");
+      return;
+    }
+  }
+
+  status = (jint*)malloc((size_t)count * sizeof(jint));
+  if(status == NULL)
+  {
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                     "Unable to allocate publish results.");
+    return;
+  }
+
+  length = (*env)->GetStringUTFLength(env, msg);
+  msgbuf = (*env)->GetStringUTFChars(env, msg, NULL);
+  if(msgbuf == NULL)
+  {
+    free(status);
+    return;
+  }
+
+  if(priority < 0 || priority >= mq_priority_max())
+  {
+    for(i = 0; i < count; i++)
+      status[i] = net_adambruce_jpmq_JPMQTopic_INVALID_ARGUMENT;
+    count = 0;
+  }
+
+  for(i = 0; i < count; i++)
+  {
+    mqdes = (jbyteArray)(*env)->GetObjectArrayElement(env, mqdes_arr, i);
+    unimqdes = from_universal_mqd_t(mqdes, env);
+    (*env)->DeleteLocalRef(env, mqdes);
+
+    if(timespec != NULL)
+      ret = mq_timedsend(unimqdes, msgbuf, length, priority, &tspec);
+    else
+      ret = mq_send(unimqdes, msgbuf, length, priority);
+
+    if(ret == 0)
+    {
+      status[i] = net_adambruce_jpmq_JPMQTopic_DELIVERED;
+      continue;
+    }
+
+    switch(errno)
+    {
+        case EAGAIN:
+            status[i] = net_adambruce_jpmq_JPMQTopic_FULL;
+            break;
+        case ETIMEDOUT:
+            status[i] = net_adambruce_jpmq_JPMQTopic_TIMED_OUT;
+            break;
+        case EINTR:
+            status[i] = net_adambruce_jpmq_JPMQTopic_INTERRUPTED;
+            break;
+        case EMSGSIZE:
+            status[i] = net_adambruce_jpmq_JPMQTopic_TOO_LONG;
+            break;
+        case EINVAL:
+            status[i] = net_adambruce_jpmq_JPMQTopic_INVALID_ARGUMENT;
+            break;
+        default:
+            status[i] = net_adambruce_jpmq_JPMQTopic_BAD_DESCRIPTOR;
+            break;
+    }
+  }
+
+  (*env)->ReleaseStringUTFChars(env, msg, msgbuf);
+  (*env)->SetIntArrayRegion(env, results, 0, (*env)->GetArrayLength(env, mqdes_arr), status);
+  free(status);
+}
+
+/**
+ * Implementation for the JPMQScheduler::nativePoll method.
+ *
+ * On Linux a message queue descriptor is a file descriptor, so poll() is
+ * used to wait for readiness. Elsewhere the queues are checked with
+ * mq_getattr every millisecond until the timeout.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQScheduler object
+ * @param mqdes_arr the message queue descriptors
+ * @param timeout the maximum time to wait in milliseconds, or -1 to wait forever
+ * @param depths receives the number of messages in each ready queue
+ * @returns the number of ready queues
+ */
+JNIEXPORT jint JNICALL Java_net_adambruce_jpmq_JPMQScheduler_nativePoll
+(JNIEnv *env, jobject obj, jobjectArray mqdes_arr, jint timeout, jintArray depths)
+{
+  struct mq_attr attr;
+  jbyteArray mqdes;
+  mqd_t *unimqdes;
+  jint *depth;
+  jsize count, i;
+  int ready, status;
+#ifdef __linux__
+  struct pollfd *fds;
+  int error;
+#else
+  struct timespec tick;
+  jint waited;
+#endif
+
+  count = (*env)->GetArrayLength(env, mqdes_arr);
+  if(count <= 0)
+    return 0;
+
+  unimqdes = (mqd_t*)malloc((size_t)count * sizeof(mqd_t));
+  depth = (jint*)calloc((size_t)count, sizeof(jint));
+  if(unimqdes == NULL || depth == NULL)
+  {
+    free(unimqdes);
+    free(depth);
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                     "Unable to allocate poll state.");
+    return 0;
+  }
+
+  for(i = 0; i < count; i++)
+  {
+    mqdes = (jbyteArray)(*env)->GetObjectArrayElement(env, mqdes_arr, i);
+    unimqdes[i] = from_universal_mqd_t(mqdes, env);
+    (*env)->DeleteLocalRef(env, mqdes);
+  }
+
+  ready = 0;
+
+#ifdef __linux__
+  fds = (struct pollfd*)malloc((size_t)count * sizeof(struct pollfd));
+  if(fds == NULL)
+  {
+    free(unimqdes);
+    free(depth);
+    (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                     "Unable to allocate poll state.");
+    return 0;
+  }
+
+  for(i = 0; i < count; i++)
+  {
+    fds[i].fd = (int)unimqdes[i];
+    fds[i].events = POLLIN;
+    fds[i].revents = 0;
+  }
+
+  status = poll(fds, (nfds_t)count, timeout);
+  error = errno;
+  if(status == -1)
+  {
+    free(fds);
+    free(unimqdes);
+    free(depth);
+    switch(error)
+    {
+        case EINTR:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                             "The call was interrupted by a signal handler.");
+            break;
+        default:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InsufficientMemoryException"),
+                             "Insufficient memory to poll queues.");
+            break;
+    }
+    return 0;
+  }
+
+  for(i = 0; i < count && status > 0; i++)
+  {
+    if(fds[i].revents & POLLNVAL)
+    {
+      free(fds);
+      free(unimqdes);
+      free(depth);
+      (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                       "Invalid message queue descriptor.");
+      return 0;
+    }
+    if((fds[i].revents & POLLIN) && mq_getattr(unimqdes[i], &attr) == 0 && attr.mq_curmsgs > 0)
+    {
+      depth[i] = (jint)attr.mq_curmsgs;
+      ready++;
+    }
+  }
+  free(fds);
+#else
+  tick.tv_sec = 0;
+  tick.tv_nsec = 1000000;
+  waited = 0;
+  for(;;)
+  {
+    for(i = 0; i < count; i++)
+    {
+      status = mq_getattr(unimqdes[i], &attr);
+      if(status == -1)
+      {
+        free(unimqdes);
+        free(depth);
+        (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                         "Invalid message queue descriptor.");
+        return 0;
+      }
+      if(attr.mq_curmsgs > 0)
+      {
+        depth[i] = (jint)attr.mq_curmsgs;
+        ready++;
+      }
+    }
+    if(ready > 0 || (timeout >= 0 && waited >= timeout))
+      break;
+    nanosleep(&tick, NULL);
+    waited++;
+  }
+#endif
+
+  (*env)->SetIntArrayRegion(env, depths, 0, count, depth);
+  free(unimqdes);
+  free(depth);
+  return ready;
+}
+
+/**
+ * Reads CLOCK_MONOTONIC in nanoseconds.
+ *
+ * @returns the monotonic time in nanoseconds
+ */
+jlong monotonic_nanos(void)
+{
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return (jlong)now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+/**
+ * Implementation for the JPMQTracer::nativeTracedSend method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQTracer object
+ * @param mqdes the message queue descriptor
+ * @param buffer the direct ByteBuffer holding the header and message
+ * @param offset the offset of the header within the buffer
+ * @param length the length of the header and message
+ * @param priority the priority of the message
+ */
+JNIEXPORT void JNICALL Java_net_adambruce_jpmq_JPMQTracer_nativeTracedSend
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jobject buffer, jint offset, jint length, jint priority)
+{
+  char *buf;
+  mqd_t unimqdes;
+  jlong stamp;
+  int status, error;
+
+  unimqdes = from_universal_mqd_t(mqdes, env);
+  buf = (char*)(*env)->GetDirectBufferAddress(env, buffer);
+
+  stamp = monotonic_nanos();
+  memcpy(buf + offset, &stamp, sizeof(jlong));
+  status = mq_send(unimqdes, buf + offset, length, priority);
+  error = errno;
+
+  if(status == -1)
+  {
+      switch(error)
+      {
+          case EAGAIN:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueFullException"),
+                               "The message queue is full.");
+              break;
+          case EBADF:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                               "Invalid message queue descriptor.");
+              break;
+          case EINTR:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                               "The call was interrupted by a signal handler.");
+              break;
+          case EMSGSIZE:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
+                               "Provided message is longer than queue message size.");
+              break;
+          default:
+              (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                               strerror(error));
+              break;
+      }
+  }
+}
+
+/**
+ * Implementation for the JPMQTracer::nativeTracedReceive method.
+ *
+ * @param env pointer to the JNI environment
+ * @param obj pointer to the JPMQTracer object
+ * @param mqdes the message queue descriptor
+ * @param buffer the direct ByteBuffer to receive into
+ * @param offset the offset within the buffer to write the message
+ * @param capacity the number of bytes available from the offset
+ * @param trace receives the time in nanoseconds the message spent in the queue
+ * and the priority of the message
+ * @returns the length of the header and message received
+ */
+JNIEXPORT jint JNICALL Java_net_adambruce_jpmq_JPMQTracer_nativeTracedReceive
+(JNIEnv *env, jobject obj, jbyteArray mqdes, jobject buffer, jint offset, jint capacity,
+ jlongArray trace)
+{
+  char *buf;
+  mqd_t unimqdes;
+  jlong stamp, values[2];
+  unsigned int priority;
+  ssize_t status;
+  int error;
+
+  unimqdes = from_universal_mqd_t(mqdes, env);
+  buf = (char*)(*env)->GetDirectBufferAddress(env, buffer);
+  status = mq_receive(unimqdes, buf + offset, capacity, &priority);
+  error = errno;
+
+  if(status == -1)
+  {
+    switch(error)
+    {
+        case EAGAIN:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/QueueEmptyException"),
+                             "The queue is empty.");
+            break;
+        case EBADF:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/BadDescriptorException"),
+                             "Invalid message queue descriptor.");
+            break;
+        case EINTR:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/InterruptException"),
+                             "The call was interrupted by a signal handler.");
+            break;
+        case EMSGSIZE:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "net/adambruce/jpmq/MessageLengthException"),
+                             "Buffer was smaller than message size.");
+            break;
+        default:
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalStateException"),
+                             strerror(error));
+            break;
+    }
+    return 0;
+  }
+
+  values[0] = 0;
+  if(status >= (ssize_t)sizeof(jlong))
+  {
+    memcpy(&stamp, buf + offset, sizeof(jlong));
+    values[0] = monotonic_nanos() - stamp;
+  }
+  values[1] = (jlong)priority;
+  (*env)->SetLongArrayRegion(env, trace, 0, 2, values);
+
+  return (jint)status;
+}
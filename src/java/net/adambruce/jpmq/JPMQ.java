@@ -1,5 +1,7 @@
 package net.adambruce.jpmq;
 
+import java.nio.ByteBuffer;
+
 /**
  * JPMQ represents a descriptor to a POSIX message queue.
  *
@@ -35,6 +37,9 @@ public class JPMQ {
     /** Opens the queue in non-blocking mode */
     public static final int O_NONBLOCK  = 0b1000000;
 
+    /** One more than the highest priority supported by the system */
+    static final int PRIORITY_MAX = nativePriorityMax();
+
     /* Message queue name and descriptor */
     private byte[] descriptor;
     private String name;
@@ -226,7 +231,68 @@ public class JPMQ {
         MessageLengthException {
 
         try {
-    	    nativeSend(descriptor, message, message.length(), priority);
+    	    nativeSend(descriptor, message, priority);
+        } catch (Exception e) {
+            throw e;
+        }
+    }
+
+    /**
+     * Receives a message from the message queue into a direct buffer. The
+     * message is written at the buffer's position, which is then advanced
+     * past the message.
+     *
+     * @param buffer the direct buffer to receive into, with at least the queue message size remaining
+     * @return the length of the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws IllegalArgumentException if the buffer is not direct.
+     * @since 1.1
+     */
+    public int receive(ByteBuffer buffer) throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct.");
+
+        try {
+            int length = nativeReceiveBuffer(descriptor, buffer, buffer.position(), buffer.remaining());
+            buffer.position(buffer.position() + length);
+            return length;
+        } catch (Exception e) {
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of a direct buffer to the message queue. The
+     * buffer's position is advanced to its limit once the message is sent.
+     *
+     * @param buffer the direct buffer holding the message
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @throws IllegalArgumentException if the buffer is not direct.
+     * @since 1.1
+     */
+    public void send(ByteBuffer buffer, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException {
+
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct.");
+
+        try {
+            nativeSendBuffer(descriptor, buffer, buffer.position(), buffer.remaining(), priority);
+            buffer.position(buffer.limit());
         } catch (Exception e) {
             throw e;
         }
@@ -259,6 +325,40 @@ public class JPMQ {
         }
     }
 
+    /**
+     * Attempts to receive a message from the queue into a direct buffer,
+     * waiting until the timeout if the queue is empty. The message is written
+     * at the buffer's position, which is then advanced past the message.
+     *
+     * @param buffer the direct buffer to receive into, with at least the queue message size remaining
+     * @param timespec the timeout for receiving a message
+     * @return the length of the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if the given timeout is invalid.
+     * @throws TimeoutException if the call timed out before a message was received.
+     * @throws IllegalArgumentException if the buffer is not direct.
+     * @since 1.1
+     */
+    public int timedReceive(ByteBuffer buffer, JPMQTimespec timespec) throws
+        QueueEmptyException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException, TimeoutException {
+
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct.");
+
+        try {
+            int length = nativeTimedReceiveBuffer(descriptor, buffer, buffer.position(), buffer.remaining(), timespec);
+            buffer.position(buffer.position() + length);
+            return length;
+        } catch (Exception e) {
+            throw e;
+        }
+    }
+
     /**
      * Attempts to send a message to the queue. If the queue is full, the call
      * will continue trying to send the message until the timeout is reached,
@@ -281,7 +381,7 @@ public class JPMQ {
         MessageLengthException, TimeoutException {
 
         try {
-    	    nativeTimedSend(descriptor, message, message.length(), priority, timespec);
+    	    nativeTimedSend(descriptor, message, priority, timespec);
         } catch (Exception e) {
             throw e;
         }
@@ -420,10 +520,51 @@ public class JPMQ {
      * @throws MessageLengthException if the message length is greater than the queue message length.
      * @since 1.0
      */
-    private native void nativeSend(byte[] descriptor, String message, int length, int priority) throws
+    private native void nativeSend(byte[] descriptor, String message, int priority) throws
         QueueFullException, BadDescriptorException, InterruptException,
         MessageLengthException;
 
+    /**
+     * Native wrapper for mq_receive(mqd_t mqdes, char *msg_ptr, size_t msg_len, unsigned int *msg_prio);
+     * Receives a message from the message queue into a direct buffer.
+     *
+     * @param descriptor the message queue descriptor
+     * @param buffer the direct buffer to receive into
+     * @param offset the offset within the buffer to write the message
+     * @param capacity the number of bytes available from the offset
+     * @return the length of the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @since 1.1
+     */
+    private native int nativeReceiveBuffer(byte[] descriptor, ByteBuffer buffer, int offset, int capacity) throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException;
+
+    /**
+     * Native wrapper for mq_send(mqd_t mqdes, const char *msg_ptr, size_t msg_len, unsigned int msg_prio);
+     * Sends a message held in a direct buffer to the message queue.
+     *
+     * @param descriptor the message queue descriptor
+     * @param buffer the direct buffer holding the message
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    private native void nativeSendBuffer(byte[] descriptor, ByteBuffer buffer, int offset, int length, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException;
+
     /**
      * Native wrapper for mq_timedreceive(mqd_t mqdes, char *restrict msg_ptr, size_t msg_len, unsigned int *restrict msg_prio,
                                           const struct timespec *restrict abs_timeout);
@@ -447,6 +588,32 @@ public class JPMQ {
         QueueEmptyException, BadDescriptorException, InterruptException, InvalidValueException,
         MessageLengthException, TimeoutException;
 
+    /**
+     * Native wrapper for mq_timedreceive(mqd_t mqdes, char *restrict msg_ptr, size_t msg_len, unsigned int *restrict msg_prio,
+                                          const struct timespec *restrict abs_timeout);
+     * Attempts to receive a message from the queue into a direct buffer,
+     * waiting until the timeout if the queue is empty.
+     *
+     * @param descriptor the message queue descriptor
+     * @param buffer the direct buffer to receive into
+     * @param offset the offset within the buffer to write the message
+     * @param capacity the number of bytes available from the offset
+     * @param timespec the timeout for receiving a message
+     * @return the length of the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if the given timeout is invalid.
+     * @throws TimeoutException if the call timed out before a message was received.
+     * @since 1.1
+     */
+    private native int nativeTimedReceiveBuffer(byte[] descriptor, ByteBuffer buffer, int offset, int capacity,
+                                                JPMQTimespec timespec) throws
+        QueueEmptyException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException, TimeoutException;
+
     /**
      * Native wrapper for mq_timedsend(mqd_t mqdes, const char *msg_ptr, size_t msg_len, unsigned int msg_prio,
                                        const struct timespec *abs_timeout);
@@ -468,7 +635,15 @@ public class JPMQ {
      * @throws TimeoutException if the call timed out before a message was sent.
      * @since 1.0
      */
-    private native void nativeTimedSend(byte[] descriptor, String message, int length, int priority, JPMQTimespec timespec) throws
+    private native void nativeTimedSend(byte[] descriptor, String message, int priority, JPMQTimespec timespec) throws
         QueueFullException, BadDescriptorException, InterruptException, InvalidValueException,
         MessageLengthException, TimeoutException;
+
+    /**
+     * Native wrapper for sysconf(_SC_MQ_PRIO_MAX).
+     *
+     * @return one more than the highest priority supported by the system
+     * @since 1.1
+     */
+    private static native int nativePriorityMax();
 }
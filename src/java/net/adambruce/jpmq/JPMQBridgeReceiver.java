@@ -0,0 +1,340 @@
+package net.adambruce.jpmq;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JPMQBridgeReceiver accepts connections from {@link JPMQBridgeSender}s and
+ * sends the messages they forward to a local queue.
+ *
+ * Each batch is acknowledged only once all of its messages have been sent to
+ * the queue, so a full queue holds back the sender rather than losing
+ * messages. Batches resent by a sender after reconnecting are recognised by
+ * their session and sequence number and acknowledged without being
+ * delivered again. Delivery is serialised per session, so a batch still
+ * being delivered from a failed connection is recognised when its resend
+ * arrives on the new one. Every connection is served by its own thread.
+ *
+ * A session with no open connection is forgotten once it has been idle for
+ * {@link #SESSION_TIMEOUT_MILLIS}. Batches resent after that, or after the
+ * receiver restarts, are delivered again.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQBridgeReceiver {
+
+    /** The largest batch body accepted from a sender */
+    public static final int MAX_BATCH_SIZE = 64 * 1024 * 1024;
+
+    /** The time a session without connections is remembered */
+    public static final long SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+
+    /** The time to wait before retrying a full queue */
+    private static final long FULL_NANOS = 50000L;
+
+    /* Destination */
+    private final JPMQ queue;
+    private final int priority;
+    private final ServerSocketChannel server;
+
+    /* Sender sessions and open connections */
+    private final Map<Long, Session> sessions = new HashMap<>();
+    private final Set<SocketChannel> connections = new HashSet<>();
+
+    /* Statistics, updated by every connection thread */
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean closed;
+    private final Thread acceptor;
+
+    /**
+     * Creates a new bridge receiver and starts accepting connections.
+     *
+     * @param queue the queue to send forwarded messages to
+     * @param address the address to listen on
+     * @param priority the priority to send forwarded messages with
+     *
+     * @throws IOException if the address cannot be bound.
+     * @since 1.1
+     */
+    public JPMQBridgeReceiver(JPMQ queue, InetSocketAddress address, int priority) throws IOException {
+        this.queue = queue;
+        this.priority = priority;
+
+        server = ServerSocketChannel.open();
+        server.bind(address);
+
+        acceptor = new Thread(this::accept, "jpmq-bridge-accept-" + queue.getName());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the address the receiver is listening on. This is useful when
+     * the receiver was bound to port 0.
+     *
+     * @return the listening address
+     *
+     * @throws IOException if the address cannot be read.
+     * @since 1.1
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Stops accepting connections and closes every open connection. Batches
+     * which have not been acknowledged will be resent by their senders.
+     *
+     * @since 1.1
+     */
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            /* Already closed */
+        }
+        synchronized (this) {
+            for (SocketChannel connection : connections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    /* Already closed */
+                }
+            }
+            connections.clear();
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of messages sent to the queue.
+     *
+     * @return the number of messages received
+     * @since 1.1
+     */
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Returns the number of messages discarded because their batch had
+     * already been delivered.
+     *
+     * @return the number of duplicate messages
+     * @since 1.1
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns the number of messages discarded because they were longer than
+     * the queue message size or the priority was invalid.
+     *
+     * @return the number of dropped messages
+     * @since 1.1
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Body of the acceptor thread.
+     */
+    private void accept() {
+        while (!closed) {
+            SocketChannel connection;
+            try {
+                connection = server.accept();
+                connection.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        /* Already closed */
+                    }
+                    return;
+                }
+                connections.add(connection);
+            }
+
+            Thread reader = new Thread(() -> serve(connection), "jpmq-bridge-receive-" + queue.getName());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Body of the thread serving one connection. Reads the session number,
+     * then delivers and acknowledges batches until the connection closes.
+     *
+     * @param connection the connection to serve
+     */
+    private void serve(SocketChannel connection) {
+        ByteBuffer header = ByteBuffer.allocateDirect(JPMQBridgeSender.HEADER_SIZE);
+        ByteBuffer ack = ByteBuffer.allocateDirect(8);
+        ByteBuffer body = ByteBuffer.allocateDirect(0);
+        Session session = null;
+
+        try {
+            header.limit(8);
+            readFully(connection, header);
+            session = attach(header.getLong(0));
+
+            while (!closed) {
+                header.clear();
+                readFully(connection, header);
+                long sequence = header.getLong(0);
+                int count = header.getInt(8);
+                int length = header.getInt(12);
+                if (length < 0 || length > MAX_BATCH_SIZE)
+                    throw new IOException("Invalid batch length " + length + ".");
+
+                if (body.capacity() < length)
+                    body = ByteBuffer.allocateDirect(length);
+                body.clear().limit(length);
+                readFully(connection, body);
+
+                synchronized (session) {
+                    if (sequence > session.lastDelivered) {
+                        deliver(body, count);
+                        session.lastDelivered = sequence;
+                    } else {
+                        duplicates.add(count);
+                    }
+                }
+
+                ack.clear();
+                ack.putLong(0, sequence);
+                while (ack.hasRemaining())
+                    connection.write(ack);
+            }
+        } catch (IOException | BadDescriptorException e) {
+            /* The sender will reconnect and resend unacknowledged batches */
+        } finally {
+            synchronized (this) {
+                connections.remove(connection);
+                if (session != null && --session.connections == 0)
+                    session.idleSince = System.nanoTime();
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                /* Already closed */
+            }
+        }
+    }
+
+    /**
+     * Sends each message in a batch body to the queue, waiting while the
+     * queue is full.
+     *
+     * @param body the batch body
+     * @param count the number of messages in the body
+     * @throws IOException if the body is malformed or the receiver is closed.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     */
+    private void deliver(ByteBuffer body, int count) throws IOException, BadDescriptorException {
+        int end = body.limit();
+        int position = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (end - position < 4)
+                throw new IOException("Truncated batch.");
+            int length = body.getInt(position);
+            position += 4;
+            if (length < 0 || length > end - position)
+                throw new IOException("Invalid message length " + length + ".");
+
+            while (true) {
+                if (closed)
+                    throw new IOException("Receiver closed.");
+                body.limit(position + length).position(position);
+                try {
+                    queue.send(body, priority);
+                    received.increment();
+                    break;
+                } catch (QueueFullException | InterruptException e) {
+                    LockSupport.parkNanos(FULL_NANOS);
+                } catch (MessageLengthException | InvalidValueException e) {
+                    dropped.increment();
+                    break;
+                }
+            }
+            position += length;
+            body.limit(end);
+        }
+    }
+
+    /**
+     * Finds or creates the state for a sender session and counts a new
+     * connection to it, forgetting sessions which have been idle for longer
+     * than the session timeout.
+     *
+     * @param id the session number sent by the sender
+     * @return the session
+     */
+    private synchronized Session attach(long id) {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(SESSION_TIMEOUT_MILLIS);
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.connections == 0 && now - session.idleSince > timeout)
+                iterator.remove();
+        }
+
+        Session session = sessions.get(id);
+        if (session == null) {
+            session = new Session();
+            sessions.put(id, session);
+        }
+        session.connections++;
+        return session;
+    }
+
+    private static void readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0)
+                throw new IOException("Connection closed by sender.");
+        }
+    }
+
+    /**
+     * Session holds the delivery state of one sender. Its monitor is held
+     * while a batch is checked, delivered and recorded.
+     */
+    private static final class Session {
+        /* Guarded by the session */
+        long lastDelivered;
+
+        /* Guarded by the receiver */
+        int connections;
+        long idleSince;
+    }
+}
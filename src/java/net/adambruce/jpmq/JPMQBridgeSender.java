@@ -0,0 +1,432 @@
+package net.adambruce.jpmq;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JPMQBridgeSender forwards the messages in a queue to a
+ * {@link JPMQBridgeReceiver} on another host over TCP.
+ *
+ * Messages are drained from the queue into batches, each holding a 16 byte
+ * header (the batch sequence number, message count and body length)
+ * followed by each message prefixed with its length. Up to a window of
+ * batches is written with a single gathering write and kept until the
+ * receiver acknowledges them, so batching amortises the cost of the socket
+ * over many small messages.
+ *
+ * If the connection fails, the sender reconnects and writes every
+ * unacknowledged batch again. Each sender identifies itself with a random
+ * session number so the receiver can discard batches it has already
+ * delivered, but messages may still be delivered twice if the receiver
+ * restarts or has forgotten the session after
+ * {@link JPMQBridgeReceiver#SESSION_TIMEOUT_MILLIS} without a connection.
+ * Message priorities are not forwarded.
+ *
+ * The queue must be opened without O_NONBLOCK. The sender blocks in
+ * mq_timedreceive for the first message of each batch, so an idle bridge
+ * does not wake up for every message it might have missed, and receives the
+ * rest of the batch with a timeout which has already passed, which returns
+ * at once when the queue is empty. If the queue descriptor becomes invalid,
+ * forwarding stops and the failure is reported by {@link #getFailure()}.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQBridgeSender {
+
+    /** The size of a batch header in bytes */
+    public static final int HEADER_SIZE = 16;
+
+    /** The longest time to block waiting for a message before checking for close */
+    private static final long IDLE_MILLIS = 100L;
+
+    /** A timeout in the past, so that a receive returns at once when the queue is empty */
+    private static final JPMQTimespec EXPIRED = new JPMQTimespec(0, 0);
+
+    /* Source and destination */
+    private final JPMQ queue;
+    private final InetSocketAddress address;
+    private final int maxBatch;
+    private final long reconnectMillis;
+    private final long session = ThreadLocalRandom.current().nextLong();
+
+    /* Window of batches, indexed by sequence number modulo the window size */
+    private final ByteBuffer[] batches;
+    private final ByteBuffer[] writes;
+    private final ByteBuffer sessionHeader = ByteBuffer.allocateDirect(8);
+    private long nextSequence = 1;
+    private long acknowledged;
+    private boolean filling;
+
+    /* Statistics */
+    private volatile long forwarded;
+    private volatile long batchesSent;
+    private volatile long batchesResent;
+    private volatile long reconnects;
+
+    private SocketChannel channel;
+    private volatile boolean draining = true;
+    private volatile boolean closed;
+    private volatile BadDescriptorException failure;
+    private final Thread writer;
+
+    /**
+     * Creates a new bridge sender and starts forwarding messages.
+     *
+     * @param queue the queue to forward, opened without O_NONBLOCK
+     * @param attributes the queue attributes, used for the message size
+     * @param address the address of the bridge receiver
+     * @param maxBatch the maximum number of messages in a batch
+     * @param window the maximum number of unacknowledged batches
+     * @param reconnectMillis the delay between connection attempts
+     *
+     * @throws InvalidValueException if the queue is non-blocking or a limit is invalid.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @since 1.1
+     */
+    public JPMQBridgeSender(JPMQ queue, JPMQAttributes attributes, InetSocketAddress address,
+                            int maxBatch, int window, long reconnectMillis) throws
+        InvalidValueException, BadDescriptorException {
+
+        if ((queue.getAttributes().getFlags() & JPMQ.O_NONBLOCK) != 0)
+            throw new InvalidValueException("Queue must not be opened with O_NONBLOCK.");
+        if (maxBatch < 1 || window < 1)
+            throw new InvalidValueException("Batch size and window must be at least 1.");
+        if (reconnectMillis < 0)
+            throw new InvalidValueException("Reconnect delay must not be negative.");
+
+        this.queue = queue;
+        this.address = address;
+        this.maxBatch = maxBatch;
+        this.reconnectMillis = reconnectMillis;
+
+        int capacity = HEADER_SIZE + maxBatch * (4 + attributes.getmessageSize());
+        batches = new ByteBuffer[window];
+        for (int i = 0; i < window; i++)
+            batches[i] = ByteBuffer.allocateDirect(capacity);
+        writes = new ByteBuffer[window];
+
+        writer = new Thread(this::run, "jpmq-bridge-" + queue.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops draining the queue and waits for the receiver to acknowledge the
+     * batches already forwarded, then closes the connection.
+     *
+     * @param timeoutMillis the maximum time to wait for acknowledgements
+     * @return true if every forwarded message was acknowledged
+     * @since 1.1
+     */
+    public boolean close(long timeoutMillis) {
+        draining = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean complete;
+        synchronized (this) {
+            long remaining;
+            while ((filling || acknowledged < nextSequence - 1)
+                   && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            complete = acknowledged == nextSequence - 1;
+            closed = true;
+            notifyAll();
+        }
+
+        disconnect();
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return complete;
+    }
+
+    /**
+     * Returns the number of messages forwarded, including those not yet
+     * acknowledged.
+     *
+     * @return the number of messages forwarded
+     * @since 1.1
+     */
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Returns the number of batches written for the first time.
+     *
+     * @return the number of batches sent
+     * @since 1.1
+     */
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    /**
+     * Returns the number of batches written again after reconnecting.
+     *
+     * @return the number of batches resent
+     * @since 1.1
+     */
+    public long getBatchesResent() {
+        return batchesResent;
+    }
+
+    /**
+     * Returns the number of times the sender has connected to the receiver.
+     *
+     * @return the number of connections made
+     * @since 1.1
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Returns the error which stopped the sender draining the queue, if any.
+     * Batches already drained are still forwarded after a failure.
+     *
+     * @return the error, or null if the sender is still draining the queue
+     * @since 1.1
+     */
+    public BadDescriptorException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of batches awaiting acknowledgement.
+     *
+     * @return the number of unacknowledged batches
+     * @since 1.1
+     */
+    public synchronized int getUnacknowledged() {
+        return (int) (nextSequence - 1 - acknowledged);
+    }
+
+    /**
+     * Body of the writer thread. Fills free batches in the window from the
+     * queue and writes them, reconnecting whenever the connection fails.
+     */
+    private void run() {
+        while (!closed) {
+            try {
+                if (channel == null)
+                    connect();
+
+                SocketChannel connection;
+                long first;
+                int free;
+                synchronized (this) {
+                    if (closed)
+                        break;
+                    connection = channel;
+                    long inFlight = nextSequence - 1 - acknowledged;
+                    if (inFlight == batches.length || !draining) {
+                        wait(Math.max(1, reconnectMillis));
+                        if (!closed && !connection.isOpen())
+                            throw new IOException("Connection closed.");
+                        continue;
+                    }
+                    first = nextSequence;
+                    free = (int) (batches.length - inFlight);
+                    filling = true;
+                }
+
+                /* Free batches are only used by this thread, so they are filled without the lock */
+                int filled = 0;
+                try {
+                    while (filled < free) {
+                        long sequence = first + filled;
+                        ByteBuffer batch = batches[(int) (sequence % batches.length)];
+                        if (!fill(batch, sequence, filled == 0))
+                            break;
+                        writes[filled++] = batch;
+                    }
+                } finally {
+                    synchronized (this) {
+                        nextSequence += filled;
+                        filling = false;
+                        notifyAll();
+                    }
+                }
+
+                if (filled == 0)
+                    continue;
+                write(connection, writes, filled);
+                batchesSent += filled;
+            } catch (IOException e) {
+                disconnect();
+                if (!closed)
+                    LockSupport.parkNanos(reconnectMillis * 1000000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drains messages from the queue into a batch.
+     *
+     * @param batch the batch buffer
+     * @param sequence the batch sequence number
+     * @param block true to wait for the first message
+     * @return true if the batch holds at least one message
+     */
+    private boolean fill(ByteBuffer batch, long sequence, boolean block) {
+        batch.clear().position(HEADER_SIZE);
+
+        JPMQTimespec timeout = EXPIRED;
+        if (block) {
+            long millis = System.currentTimeMillis() + IDLE_MILLIS;
+            timeout = new JPMQTimespec((int) (millis / 1000), (int) (millis % 1000) * 1000000);
+        }
+
+        int count = 0;
+        while (count < maxBatch) {
+            int start = batch.position();
+            batch.position(start + 4);
+            try {
+                int length = queue.timedReceive(batch, count == 0 ? timeout : EXPIRED);
+                batch.putInt(start, length);
+                count++;
+            } catch (TimeoutException | QueueEmptyException | InterruptException | MessageLengthException
+                     | InvalidValueException e) {
+                batch.position(start);
+                break;
+            } catch (BadDescriptorException e) {
+                /* The queue has been closed, so nothing more can be forwarded */
+                batch.position(start);
+                failure = e;
+                draining = false;
+                break;
+            }
+        }
+        if (count == 0)
+            return false;
+
+        batch.putLong(0, sequence);
+        batch.putInt(8, count);
+        batch.putInt(12, batch.position() - HEADER_SIZE);
+        batch.flip();
+        forwarded += count;
+        return true;
+    }
+
+    /**
+     * Opens a connection, identifies the session and writes every batch the
+     * receiver has not acknowledged.
+     *
+     * @throws IOException if the connection fails.
+     */
+    private void connect() throws IOException {
+        SocketChannel connection = SocketChannel.open(address);
+        connection.socket().setTcpNoDelay(true);
+        sessionHeader.clear();
+        sessionHeader.putLong(0, session);
+        while (sessionHeader.hasRemaining())
+            connection.write(sessionHeader);
+
+        int count;
+        synchronized (this) {
+            channel = connection;
+            count = 0;
+            for (long sequence = acknowledged + 1; sequence < nextSequence; sequence++) {
+                ByteBuffer batch = batches[(int) (sequence % batches.length)];
+                batch.position(0);
+                writes[count++] = batch;
+            }
+        }
+        reconnects++;
+
+        Thread reader = new Thread(() -> readAcknowledgements(connection),
+                                   "jpmq-bridge-ack-" + queue.getName());
+        reader.setDaemon(true);
+        reader.start();
+
+        if (count > 0) {
+            write(connection, writes, count);
+            batchesResent += count;
+        }
+    }
+
+    /**
+     * Writes batches to a connection with gathering writes.
+     *
+     * @param connection the connection to write to
+     * @param buffers the batches to write
+     * @param count the number of batches
+     * @throws IOException if the connection fails.
+     */
+    private void write(SocketChannel connection, ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            connection.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining())
+                first++;
+        }
+    }
+
+    /**
+     * Body of the acknowledgement thread for one connection. Each
+     * acknowledgement is the sequence number of the last batch delivered.
+     *
+     * @param connection the connection to read from
+     */
+    private void readAcknowledgements(SocketChannel connection) {
+        ByteBuffer ack = ByteBuffer.allocateDirect(8);
+        try {
+            while (true) {
+                ack.clear();
+                while (ack.hasRemaining()) {
+                    if (connection.read(ack) < 0)
+                        throw new IOException("Connection closed by receiver.");
+                }
+                long sequence = ack.getLong(0);
+                synchronized (this) {
+                    if (sequence > acknowledged)
+                        acknowledged = sequence;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                /* Already closed */
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes the current connection, if any.
+     */
+    private void disconnect() {
+        SocketChannel connection;
+        synchronized (this) {
+            connection = channel;
+            channel = null;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                /* Already closed */
+            }
+        }
+    }
+}
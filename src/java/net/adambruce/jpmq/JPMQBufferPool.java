@@ -0,0 +1,78 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * JPMQBufferPool recycles direct buffers of a fixed capacity.
+ *
+ * Direct buffers are expensive to allocate and are only reclaimed by the
+ * garbage collector, so buffers used for queue messages are returned to the
+ * pool once a message has been sent or decoded.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQBufferPool {
+
+    /* Buffer capacity and pooled buffers */
+    private final int capacity;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param capacity the capacity of each buffer
+     * @param maxPooled the maximum number of buffers held by the pool
+     * @since 1.1
+     */
+    public JPMQBufferPool(int capacity, int maxPooled) {
+        this.capacity = capacity;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool, allocating one if the pool is
+     * empty.
+     *
+     * @return a direct buffer
+     * @since 1.1
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.poll();
+        }
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of a different capacity and
+     * buffers beyond the pool limit are discarded.
+     *
+     * @param buffer the buffer to return
+     * @since 1.1
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != capacity || !buffer.isDirect())
+            return;
+        synchronized (buffers) {
+            if (buffers.size() < maxPooled)
+                buffers.push(buffer);
+        }
+    }
+
+    /**
+     * Returns the capacity of each buffer.
+     *
+     * @return the buffer capacity
+     * @since 1.1
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
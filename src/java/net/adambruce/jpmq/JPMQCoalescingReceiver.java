@@ -0,0 +1,158 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * JPMQCoalescingReceiver receives records sent by a
+ * {@link JPMQCoalescingSender}.
+ *
+ * Each coalesced message is unpacked into its records, which are then
+ * returned one at a time. Messages which do not begin with
+ * {@link JPMQCoalescingSender#MARKER} are returned unchanged, so coalesced
+ * and plain traffic may share a queue. Messages are received into a direct
+ * buffer and decoded as UTF-8.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQCoalescingReceiver {
+
+    /* Source queue and unpacked records */
+    private final JPMQ queue;
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a new coalescing receiver for the given queue.
+     *
+     * @param queue the queue to receive from
+     * @since 1.1
+     */
+    public JPMQCoalescingReceiver(JPMQ queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Receives the next record, receiving a message from the queue only when
+     * no unpacked records remain.
+     *
+     * @return the record received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if a coalesced message is malformed.
+     * @since 1.1
+     */
+    public synchronized String receive() throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException, InvalidValueException {
+
+        if (pending.isEmpty()) {
+            ByteBuffer message = buffer();
+            queue.receive(message);
+            return unpack(message);
+        }
+        return pending.poll();
+    }
+
+    /**
+     * Receives the next record, waiting until the timeout for a message
+     * when no unpacked records remain.
+     *
+     * @param timespec the timeout for receiving a message
+     * @return the record received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if the given timeout is invalid or a coalesced message is malformed.
+     * @throws TimeoutException if the call timed out before a message was received.
+     * @since 1.1
+     */
+    public synchronized String timedReceive(JPMQTimespec timespec) throws
+        QueueEmptyException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException, TimeoutException {
+
+        if (pending.isEmpty()) {
+            ByteBuffer message = buffer();
+            queue.timedReceive(message, timespec);
+            return unpack(message);
+        }
+        return pending.poll();
+    }
+
+    /**
+     * Returns the number of unpacked records waiting to be returned.
+     *
+     * @return the number of pending records
+     * @since 1.1
+     */
+    public synchronized int getPendingRecords() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the receive buffer, cleared and sized to the queue message
+     * size on first use.
+     */
+    private ByteBuffer buffer() throws BadDescriptorException {
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(queue.getAttributes().getmessageSize());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Splits a message into its records, returning the first and queueing
+     * the rest.
+     *
+     * @param message the buffer holding the message, with the position at its end
+     * @return the first record of the message
+     * @throws InvalidValueException if a coalesced message is malformed.
+     */
+    private String unpack(ByteBuffer message) throws InvalidValueException {
+        int end = message.position();
+        if (end == 0 || message.get(0) != (byte) JPMQCoalescingSender.MARKER)
+            return decode(message, 0, end);
+
+        int index = 1;
+        while (index < end) {
+            int length = 0;
+            byte b;
+            while (index < end && (b = message.get(index)) != (byte) JPMQCoalescingSender.SEPARATOR) {
+                if (b < '0' || b > '9' || length > (Integer.MAX_VALUE - 9) / 10)
+                    throw new InvalidValueException("Coalesced message has an invalid record length.");
+                length = length * 10 + (b - '0');
+                index++;
+            }
+
+            int start = index + 1;
+            if (index == end || length > end - start)
+                throw new InvalidValueException("Coalesced message is truncated.");
+
+            pending.add(decode(message, start, length));
+            index = start + length;
+        }
+
+        if (pending.isEmpty())
+            throw new InvalidValueException("Coalesced message contains no records.");
+        return pending.poll();
+    }
+
+    /**
+     * Decodes part of the buffer as UTF-8. The buffer's position and limit
+     * are changed.
+     */
+    private static String decode(ByteBuffer message, int offset, int length) {
+        byte[] bytes = new byte[length];
+        message.limit(offset + length).position(offset);
+        message.get(bytes);
+        message.limit(message.capacity());
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,275 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JPMQCoalescingSender packs many small records into a single queue message.
+ *
+ * Records are appended to a pending batch which is sent as one message when
+ * the next record would exceed the queue message size, when the configured
+ * record count is reached, or when the oldest pending record has waited for
+ * longer than the configured flush delay. Batches are unpacked transparently
+ * by a {@link JPMQCoalescingReceiver}.
+ *
+ * Records are encoded as UTF-8. Each record costs its encoded length in
+ * decimal plus one separator byte, and each batch costs one marker byte.
+ * Sizes are measured in bytes, as the queue message size is, and batches are
+ * sent through {@link JPMQ#send(java.nio.ByteBuffer, int)}.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQCoalescingSender {
+
+    /** The first character of every coalesced message */
+    public static final char MARKER = '\u0001';
+
+    /** The separator between a record's length and its content */
+    static final char SEPARATOR = ':';
+
+    /* Destination queue and batching limits */
+    private final JPMQ queue;
+    private final int priority;
+    private final int messageSize;
+    private final int maxRecords;
+    private final long flushDelayNanos;
+
+    /* Pending batch, with the position at the end of the last record */
+    private final ByteBuffer batch;
+    private int records;
+    private long deadline;
+
+    private boolean closed;
+    private final Thread flusher;
+
+    /**
+     * Creates a new coalescing sender for the given queue.
+     *
+     * @param queue the queue to send batches to
+     * @param attributes the queue attributes, used for the message size
+     * @param priority the priority of every batch sent
+     * @param maxRecords the maximum number of records in a batch
+     * @param flushDelayMicros the maximum time in microseconds a record may
+     * wait before its batch is sent, or 0 to only flush on size and count
+     *
+     * @throws InvalidValueException if the priority, message size, record
+     * count or flush delay is invalid.
+     * @since 1.1
+     */
+    public JPMQCoalescingSender(JPMQ queue, JPMQAttributes attributes, int priority,
+                                int maxRecords, long flushDelayMicros) throws InvalidValueException {
+
+        if (priority < 0 || priority >= JPMQ.PRIORITY_MAX)
+            throw new InvalidValueException("Invalid message priority.");
+        if (attributes.getmessageSize() < 4)
+            throw new InvalidValueException("Message size is too small to hold a coalesced record.");
+        if (maxRecords < 1)
+            throw new InvalidValueException("Maximum record count must be at least 1.");
+        if (flushDelayMicros < 0)
+            throw new InvalidValueException("Flush delay must not be negative.");
+
+        this.queue = queue;
+        this.priority = priority;
+        this.messageSize = attributes.getmessageSize();
+        this.maxRecords = maxRecords;
+        this.flushDelayNanos = flushDelayMicros * 1000L;
+        this.batch = ByteBuffer.allocateDirect(messageSize);
+        this.batch.put((byte) MARKER);
+
+        if (flushDelayNanos > 0) {
+            flusher = new Thread(this::runFlusher, "jpmq-coalescer-" + queue.getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Adds a record to the pending batch, sending the batch first if the
+     * record would not fit. If sending fails, the record is not added, so the
+     * call may be retried without sending the record twice.
+     *
+     * @param record the record to send
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the encoded record is longer than the queue message size.
+     * @since 1.1
+     */
+    public synchronized void send(String record) throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        int encoded = encodedLength(bytes.length);
+        if (encoded + 1 > messageSize)
+            throw new MessageLengthException("Record is longer than queue message size.");
+
+        if (records > 0 && batch.position() + encoded > messageSize)
+            flushPending();
+
+        int start = batch.position();
+        putLength(bytes.length);
+        batch.put((byte) SEPARATOR).put(bytes);
+        if (records++ == 0 && flusher != null) {
+            deadline = System.nanoTime() + flushDelayNanos;
+            notifyAll();
+        }
+
+        if (records >= maxRecords) {
+            try {
+                flushPending();
+            } catch (Exception e) {
+                /* Take the record back out so a retry does not send it twice */
+                batch.position(start);
+                records--;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends the pending batch, if there is one.
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the batch is longer than the queue message size.
+     * @since 1.1
+     */
+    public synchronized void flush() throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        if (records > 0)
+            flushPending();
+    }
+
+    /**
+     * Sends the pending batch and stops the flush thread. The underlying
+     * queue is not closed.
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the batch is longer than the queue message size.
+     * @since 1.1
+     */
+    public synchronized void close() throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        closed = true;
+        notifyAll();
+        if (flusher != null)
+            LockSupport.unpark(flusher);
+        flush();
+    }
+
+    /**
+     * Returns the number of records waiting in the pending batch.
+     *
+     * @return the number of pending records
+     * @since 1.1
+     */
+    public synchronized int getPendingRecords() {
+        return records;
+    }
+
+    /**
+     * Sends the batch and resets it. The batch is kept if the send fails so
+     * that the records are retried by the next flush.
+     */
+    private void flushPending() throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        int end = batch.position();
+        batch.flip();
+        try {
+            queue.send(batch, priority);
+        } catch (InvalidValueException e) {
+            /* The priority was checked by the constructor */
+            batch.limit(batch.capacity()).position(end);
+            throw new IllegalStateException(e);
+        } catch (Exception e) {
+            batch.limit(batch.capacity()).position(end);
+            throw e;
+        }
+        batch.clear().position(1);
+        records = 0;
+    }
+
+    /**
+     * Body of the flush thread. Failures are left for the next call to
+     * {@link #send(String)} or {@link #flush()}, which retries the batch and
+     * reports the error to the producer.
+     *
+     * The thread parks outside the monitor until the deadline, since
+     * Object.wait rounds timeouts up to whole milliseconds. Deadlines only
+     * move later, so waking early at a stale deadline is harmless.
+     */
+    private void runFlusher() {
+        while (true) {
+            long remaining;
+            synchronized (this) {
+                if (closed)
+                    return;
+                if (records == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    try {
+                        flushPending();
+                    } catch (Exception e) {
+                        deadline = System.nanoTime() + flushDelayNanos;
+                    }
+                    continue;
+                }
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * Writes a record length to the batch in decimal.
+     *
+     * @param length the length in bytes
+     */
+    private void putLength(int length) {
+        int digits = encodedLength(length) - 1 - length;
+        int end = batch.position() + digits;
+        for (int i = end - 1; i >= batch.position(); i--) {
+            batch.put(i, (byte) ('0' + length % 10));
+            length /= 10;
+        }
+        batch.position(end);
+    }
+
+    /**
+     * Returns the number of bytes a record occupies within a batch.
+     *
+     * @param length the length of the record in bytes
+     * @return the encoded length of the record
+     */
+    static int encodedLength(int length) {
+        int remaining = length;
+        int digits = 1;
+        while (remaining >= 10) {
+            remaining /= 10;
+            digits++;
+        }
+        return digits + 1 + length;
+    }
+}
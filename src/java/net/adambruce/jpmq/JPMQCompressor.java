@@ -0,0 +1,317 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JPMQCompressor adds an optional compression stage to the send and receive
+ * path of a queue.
+ *
+ * Every message carries a one byte header. Messages at or above the size
+ * threshold are compressed with {@link JPMQLZCodec}, and the compressed form
+ * is only sent when it is smaller than the original, so incompressible data
+ * costs one byte and one failed compression attempt. Messages are staged in
+ * pooled direct buffers, allowing a message larger than the queue message
+ * size to be sent when it compresses to fit.
+ *
+ * The compressor records the bytes offered, the bytes sent and the time spent
+ * compressing, which together show the CPU cost against the bytes saved.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQCompressor {
+
+    /** Header of a message sent uncompressed */
+    public static final byte RAW = 0;
+    /** Header of a message sent compressed */
+    public static final byte COMPRESSED = 1;
+
+    /** The number of buffers kept by each pool */
+    private static final int POOLED_BUFFERS = 16;
+
+    /* Queue and compression settings */
+    private final JPMQ queue;
+    private final int messageSize;
+    private final int maxMessageLength;
+    private final int threshold;
+
+    /* Pools for messages as sent on the queue and as seen by the caller */
+    private final JPMQBufferPool wirePool;
+    private final JPMQBufferPool messagePool;
+
+    /* Guards the hash table and the send statistics */
+    private final Object sendLock = new Object();
+    private final int[] table = new int[JPMQLZCodec.HASH_TABLE_SIZE];
+
+    /* Send statistics */
+    private long messagesSent;
+    private long messagesCompressed;
+    private long bytesIn;
+    private long bytesOut;
+    private long compressNanos;
+
+    /**
+     * Creates a new compressor for the given queue.
+     *
+     * @param queue the queue to send to and receive from
+     * @param attributes the queue attributes, used for the message size
+     * @param maxMessageLength the maximum length of an uncompressed message
+     * @param threshold the minimum message length to attempt compression
+     *
+     * @throws InvalidValueException if the message size or maximum length is invalid.
+     * @since 1.1
+     */
+    public JPMQCompressor(JPMQ queue, JPMQAttributes attributes, int maxMessageLength,
+                          int threshold) throws InvalidValueException {
+
+        if (attributes.getmessageSize() < 2)
+            throw new InvalidValueException("Message size is too small to hold a header.");
+        if (maxMessageLength < 1)
+            throw new InvalidValueException("Maximum message length must be at least 1.");
+
+        this.queue = queue;
+        this.messageSize = attributes.getmessageSize();
+        this.maxMessageLength = maxMessageLength;
+        this.threshold = threshold;
+        this.wirePool = new JPMQBufferPool(messageSize, POOLED_BUFFERS);
+        this.messagePool = new JPMQBufferPool(maxMessageLength, POOLED_BUFFERS);
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer, compressing them if they reach
+     * the threshold and compression makes them smaller. The buffer's position
+     * is advanced to its limit once the message is sent.
+     *
+     * @param message the buffer holding the message
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message does not fit in the queue message size.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void send(ByteBuffer message, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException {
+
+        int offset = message.position();
+        int length = message.remaining();
+        ByteBuffer wire = wirePool.acquire();
+        try {
+            int wireLength = -1;
+            synchronized (sendLock) {
+                if (length >= threshold) {
+                    long start = System.nanoTime();
+                    int compressed = JPMQLZCodec.compress(message, offset, length,
+                        wire, 1, Math.min(length - 1, messageSize - 1), table);
+                    compressNanos += System.nanoTime() - start;
+
+                    if (compressed > 0) {
+                        wire.put(0, COMPRESSED);
+                        wireLength = 1 + compressed;
+                    }
+                }
+
+                if (wireLength < 0) {
+                    if (1 + length > messageSize)
+                        throw new MessageLengthException("Provided message is longer than queue message size.");
+                    wire.put(0, RAW);
+                    wire.position(1);
+                    wire.put(message.duplicate());
+                    wire.position(0);
+                    wireLength = 1 + length;
+                }
+            }
+
+            wire.limit(wireLength);
+            queue.send(wire, priority);
+            message.position(message.limit());
+
+            synchronized (sendLock) {
+                messagesSent++;
+                if (wire.get(0) == COMPRESSED)
+                    messagesCompressed++;
+                bytesIn += length;
+                bytesOut += wireLength;
+            }
+        } finally {
+            wirePool.release(wire);
+        }
+    }
+
+    /**
+     * Sends a string encoded as UTF-8.
+     *
+     * @param message the message to send
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message does not fit in the queue message size.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void send(String message, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException, InvalidValueException,
+        MessageLengthException {
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxMessageLength)
+            throw new MessageLengthException("Provided message is longer than the maximum message length.");
+
+        ByteBuffer buffer = messagePool.acquire();
+        try {
+            buffer.put(bytes).flip();
+            send(buffer, priority);
+        } finally {
+            messagePool.release(buffer);
+        }
+    }
+
+    /**
+     * Receives a message into a buffer, decompressing it if necessary. The
+     * message is written at the buffer's position, which is then advanced
+     * past the message.
+     *
+     * @param message the buffer to receive into
+     * @return the length of the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message does not fit in the buffer.
+     * @throws InvalidValueException if the message header or compressed data is malformed.
+     * @since 1.1
+     */
+    public int receive(ByteBuffer message) throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException, InvalidValueException {
+
+        ByteBuffer wire = wirePool.acquire();
+        try {
+            int wireLength = queue.receive(wire);
+            if (wireLength < 1)
+                throw new InvalidValueException("Message has no compression header.");
+
+            int offset = message.position();
+            int length;
+            switch (wire.get(0)) {
+                case RAW:
+                    length = wireLength - 1;
+                    if (length > message.remaining())
+                        throw new MessageLengthException("Buffer was smaller than message size.");
+                    ByteBuffer raw = wire.duplicate();
+                    raw.limit(wireLength).position(1);
+                    message.put(raw);
+                    break;
+                case COMPRESSED:
+                    length = JPMQLZCodec.decompress(wire, 1, wireLength - 1,
+                        message, offset, message.remaining());
+                    if (length < 0)
+                        throw new InvalidValueException("Compressed message is malformed or larger than the buffer.");
+                    break;
+                default:
+                    throw new InvalidValueException("Message has an unknown compression header.");
+            }
+
+            message.position(offset + length);
+            return length;
+        } finally {
+            wirePool.release(wire);
+        }
+    }
+
+    /**
+     * Receives a message and decodes it as UTF-8.
+     *
+     * @return the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message is longer than the maximum message length.
+     * @throws InvalidValueException if the message header or compressed data is malformed.
+     * @since 1.1
+     */
+    public String receive() throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException, InvalidValueException {
+
+        ByteBuffer buffer = messagePool.acquire();
+        try {
+            receive(buffer);
+            buffer.flip();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            messagePool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of messages sent.
+     *
+     * @return the number of messages sent
+     * @since 1.1
+     */
+    public long getMessagesSent() {
+        synchronized (sendLock) {
+            return messagesSent;
+        }
+    }
+
+    /**
+     * Returns the number of messages sent compressed.
+     *
+     * @return the number of compressed messages
+     * @since 1.1
+     */
+    public long getMessagesCompressed() {
+        synchronized (sendLock) {
+            return messagesCompressed;
+        }
+    }
+
+    /**
+     * Returns the number of message bytes offered for sending, before
+     * compression.
+     *
+     * @return the number of bytes offered
+     * @since 1.1
+     */
+    public long getBytesIn() {
+        synchronized (sendLock) {
+            return bytesIn;
+        }
+    }
+
+    /**
+     * Returns the number of bytes sent on the queue, including headers.
+     *
+     * @return the number of bytes sent
+     * @since 1.1
+     */
+    public long getBytesOut() {
+        synchronized (sendLock) {
+            return bytesOut;
+        }
+    }
+
+    /**
+     * Returns the total time spent compressing, including attempts which did
+     * not shrink the message.
+     *
+     * @return the compression time in nanoseconds
+     * @since 1.1
+     */
+    public long getCompressNanos() {
+        synchronized (sendLock) {
+            return compressNanos;
+        }
+    }
+}
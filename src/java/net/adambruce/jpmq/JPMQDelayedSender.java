@@ -0,0 +1,532 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JPMQDelayedSender holds messages until a delivery time and then sends them
+ * to a queue.
+ *
+ * Pending messages are kept in a hierarchical timer wheel of four levels of
+ * 256 buckets, advanced one tick at a time by a single daemon thread.
+ * Message contents are copied into blocks carved from direct buffer slabs,
+ * using power of two size classes so that a message occupies at most twice
+ * its own length however large the queue message size is. All other state
+ * is held in primitive arrays indexed by slot, so pending messages create no
+ * objects for the garbage collector to trace. Slabs are allocated as the
+ * number of pending messages grows and their blocks are reused once their
+ * messages have been delivered.
+ *
+ * If the queue is full when a message is due, the message is retried with
+ * exponential backoff. Once the retries are exhausted, or if the message can
+ * never be delivered, it is sent to the dead letter queue, or dropped if
+ * there is none. The queue should be opened with O_NONBLOCK, otherwise a
+ * full queue stalls the wheel instead of triggering a retry.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQDelayedSender {
+
+    /* Wheel layout */
+    private static final int LEVELS = 4;
+    private static final int BUCKET_BITS = 8;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int BUCKET_MASK = BUCKETS - 1;
+
+    /** The initial number of message slots */
+    private static final int INITIAL_SLOTS = 1024;
+
+    /* Block size classes, the smallest being 1 << MIN_BLOCK_BITS bytes */
+    private static final int MIN_BLOCK_BITS = 6;
+    private static final int SLAB_BYTES = 64 * 1024;
+
+    /** The longest retry backoff, which keeps delivery times from overflowing */
+    private static final long MAX_BACKOFF_NANOS = Long.MAX_VALUE / 4;
+
+    /** Marks the end of a bucket or free list */
+    private static final int NONE = -1;
+
+    /* Destination and policy */
+    private final JPMQ queue;
+    private final JPMQ deadLetter;
+    private final int messageSize;
+    private final int maxPending;
+    private final long tickNanos;
+    private final int maxRetries;
+    private final long retryDelayNanos;
+
+    /* Blocks holding message contents, and the per slot state */
+    private final SizeClass[] sizeClasses;
+    private byte[] classes = new byte[0];
+    private int[] blocks = new int[0];
+    private long[] due = new long[0];
+    private int[] lengths = new int[0];
+    private int[] priorities = new int[0];
+    private int[] attempts = new int[0];
+    private int[] next = new int[0];
+    private int free = NONE;
+    private int pending;
+
+    /* Wheel buckets, each the head of a list linked through next */
+    private final int[] buckets = new int[LEVELS * BUCKETS];
+    private final long origin;
+    private long currentTick;
+
+    /* Delivery statistics */
+    private long delivered;
+    private long retried;
+    private long deadLettered;
+    private long dropped;
+
+    private volatile boolean closed;
+    private final Thread wheel;
+
+    /**
+     * Creates a new delayed sender and starts its wheel thread.
+     *
+     * @param queue the queue to deliver messages to
+     * @param attributes the queue attributes, used for the message size
+     * @param maxPending the maximum number of messages waiting for delivery
+     * @param tickMicros the resolution of delivery times in microseconds
+     * @param maxRetries the number of times to retry a message when the queue is full
+     * @param retryDelayMillis the delay before the first retry, doubled for each further retry
+     * @param deadLetter the queue for messages which could not be delivered, or null to drop them
+     *
+     * @throws InvalidValueException if a limit or delay is invalid.
+     * @since 1.1
+     */
+    public JPMQDelayedSender(JPMQ queue, JPMQAttributes attributes, int maxPending, long tickMicros,
+                             int maxRetries, long retryDelayMillis, JPMQ deadLetter) throws InvalidValueException {
+
+        if (maxPending < 1)
+            throw new InvalidValueException("Maximum pending messages must be at least 1.");
+        if (tickMicros < 1)
+            throw new InvalidValueException("Tick must be at least 1 microsecond.");
+        if (maxRetries < 0 || retryDelayMillis < 0)
+            throw new InvalidValueException("Retry count and delay must not be negative.");
+
+        this.queue = queue;
+        this.deadLetter = deadLetter;
+        this.messageSize = attributes.getmessageSize();
+        this.maxPending = maxPending;
+        this.tickNanos = tickMicros * 1000L;
+        this.maxRetries = maxRetries;
+        this.retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+        this.origin = System.nanoTime();
+        Arrays.fill(buckets, NONE);
+
+        sizeClasses = new SizeClass[sizeClass(Math.max(messageSize, 1)) + 1];
+        for (int i = 0; i < sizeClasses.length; i++)
+            sizeClasses[i] = new SizeClass(1 << (MIN_BLOCK_BITS + i));
+
+        wheel = new Thread(this::run, "jpmq-delayed-" + queue.getName());
+        wheel.setDaemon(true);
+        wheel.start();
+    }
+
+    /**
+     * Schedules the remaining bytes of a buffer for delivery at a given time.
+     * The contents are copied, so the buffer may be reused once the call
+     * returns, and its position is advanced to its limit.
+     *
+     * @param message the buffer holding the message
+     * @param priority the priority of the message
+     * @param deliveryTime the delivery time, in System.nanoTime() terms
+     *
+     * @throws QueueFullException if the maximum number of pending messages has been reached.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void sendAt(ByteBuffer message, int priority, long deliveryTime) throws
+        QueueFullException, MessageLengthException, InvalidValueException {
+
+        int length = message.remaining();
+        if (length > messageSize)
+            throw new MessageLengthException("Provided message is longer than queue message size.");
+        if (priority < 0 || priority >= JPMQ.PRIORITY_MAX)
+            throw new InvalidValueException("Invalid message priority.");
+
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Delayed sender has been closed.");
+
+            int slot = allocate(length);
+            SizeClass sizeClass = sizeClasses[classes[slot]];
+            ByteBuffer slab = sizeClass.slab(blocks[slot]);
+            slab.clear().position(sizeClass.offset(blocks[slot]));
+            slab.put(message);
+
+            lengths[slot] = length;
+            priorities[slot] = priority;
+            attempts[slot] = 0;
+            schedule(slot, deliveryTime);
+        }
+    }
+
+    /**
+     * Schedules the remaining bytes of a buffer for delivery after a delay.
+     *
+     * @param message the buffer holding the message
+     * @param priority the priority of the message
+     * @param delay the delay before delivery
+     * @param unit the unit of the delay
+     *
+     * @throws QueueFullException if the maximum number of pending messages has been reached.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void sendAfter(ByteBuffer message, int priority, long delay, TimeUnit unit) throws
+        QueueFullException, MessageLengthException, InvalidValueException {
+
+        sendAt(message, priority, System.nanoTime() + unit.toNanos(delay));
+    }
+
+    /**
+     * Schedules a string, encoded as UTF-8, for delivery at a given time.
+     *
+     * @param message the message
+     * @param priority the priority of the message
+     * @param deliveryTime the delivery time, in System.nanoTime() terms
+     *
+     * @throws QueueFullException if the maximum number of pending messages has been reached.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void sendAt(String message, int priority, long deliveryTime) throws
+        QueueFullException, MessageLengthException, InvalidValueException {
+
+        sendAt(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), priority, deliveryTime);
+    }
+
+    /**
+     * Schedules a string, encoded as UTF-8, for delivery after a delay.
+     *
+     * @param message the message
+     * @param priority the priority of the message
+     * @param delay the delay before delivery
+     * @param unit the unit of the delay
+     *
+     * @throws QueueFullException if the maximum number of pending messages has been reached.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws InvalidValueException if the priority is invalid.
+     * @since 1.1
+     */
+    public void sendAfter(String message, int priority, long delay, TimeUnit unit) throws
+        QueueFullException, MessageLengthException, InvalidValueException {
+
+        sendAt(message, priority, System.nanoTime() + unit.toNanos(delay));
+    }
+
+    /**
+     * Stops the wheel thread. Messages which have not yet been delivered are
+     * discarded.
+     *
+     * @since 1.1
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(wheel);
+        try {
+            wheel.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for delivery, including those
+     * waiting to be retried.
+     *
+     * @return the number of pending messages
+     * @since 1.1
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Returns the number of messages delivered to the queue.
+     *
+     * @return the number of messages delivered
+     * @since 1.1
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Returns the number of delivery attempts which found the queue full and
+     * were rescheduled.
+     *
+     * @return the number of retries
+     * @since 1.1
+     */
+    public synchronized long getRetried() {
+        return retried;
+    }
+
+    /**
+     * Returns the number of messages sent to the dead letter queue.
+     *
+     * @return the number of dead lettered messages
+     * @since 1.1
+     */
+    public synchronized long getDeadLettered() {
+        return deadLettered;
+    }
+
+    /**
+     * Returns the number of messages which could not be delivered to either
+     * queue and were discarded.
+     *
+     * @return the number of dropped messages
+     * @since 1.1
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Body of the wheel thread. Advances the wheel to the current time, then
+     * parks until the next tick is due.
+     */
+    private void run() {
+        while (!closed) {
+            long now = System.nanoTime();
+            long target = (now - origin) / tickNanos;
+            synchronized (this) {
+                while (currentTick < target && !closed)
+                    advance();
+            }
+            LockSupport.parkNanos(origin + (target + 1) * tickNanos - System.nanoTime());
+        }
+    }
+
+    /**
+     * Advances the wheel by one tick, cascading higher levels whose buckets
+     * have come due and delivering every message in the current bucket.
+     */
+    private void advance() {
+        currentTick++;
+
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (BUCKET_BITS * level)) - 1)) != 0)
+                break;
+            int index = level * BUCKETS + (int) (currentTick >>> (BUCKET_BITS * level) & BUCKET_MASK);
+            int slot = buckets[index];
+            buckets[index] = NONE;
+            while (slot != NONE) {
+                int following = next[slot];
+                insert(slot);
+                slot = following;
+            }
+        }
+
+        int index = (int) (currentTick & BUCKET_MASK);
+        int slot = buckets[index];
+        buckets[index] = NONE;
+        while (slot != NONE) {
+            int following = next[slot];
+            if (due[slot] > currentTick)
+                insert(slot);
+            else
+                deliver(slot);
+            slot = following;
+        }
+    }
+
+    /**
+     * Sends a due message, rescheduling or dead lettering it if the queue
+     * cannot accept it.
+     *
+     * @param slot the message slot
+     */
+    private void deliver(int slot) {
+        SizeClass sizeClass = sizeClasses[classes[slot]];
+        ByteBuffer slab = sizeClass.slab(blocks[slot]);
+        int base = sizeClass.offset(blocks[slot]);
+        slab.limit(base + lengths[slot]).position(base);
+
+        try {
+            queue.send(slab, priorities[slot]);
+            delivered++;
+            release(slot);
+            return;
+        } catch (QueueFullException | InterruptException e) {
+            if (attempts[slot] < maxRetries) {
+                int shift = Math.min(attempts[slot], 20);
+                long backoff = retryDelayNanos > MAX_BACKOFF_NANOS >> shift
+                    ? MAX_BACKOFF_NANOS : retryDelayNanos << shift;
+                attempts[slot]++;
+                retried++;
+                schedule(slot, System.nanoTime() + backoff);
+                return;
+            }
+        } catch (BadDescriptorException | MessageLengthException | InvalidValueException e) {
+            /* The message can never be delivered to this queue */
+        }
+
+        if (deadLetter != null) {
+            try {
+                slab.limit(base + lengths[slot]).position(base);
+                deadLetter.send(slab, priorities[slot]);
+                deadLettered++;
+                release(slot);
+                return;
+            } catch (Exception e) {
+                /* Fall through and drop the message */
+            }
+        }
+        dropped++;
+        release(slot);
+    }
+
+    /**
+     * Records the delivery time of a slot and places it in the wheel.
+     *
+     * @param slot the message slot
+     * @param deliveryTime the delivery time, in System.nanoTime() terms
+     */
+    private void schedule(int slot, long deliveryTime) {
+        long tick = (deliveryTime - origin + tickNanos - 1) / tickNanos;
+        due[slot] = Math.max(tick, currentTick + 1);
+        insert(slot);
+    }
+
+    /**
+     * Places a slot in the bucket for its delivery tick, using the lowest
+     * level whose span covers the remaining delay. Delays beyond the span of
+     * the wheel are placed in the furthest bucket and cascaded again later.
+     *
+     * @param slot the message slot
+     */
+    private void insert(int slot) {
+        long tick = due[slot];
+        long delta = tick - currentTick;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BUCKET_BITS * (level + 1)))
+            level++;
+        if (delta >= 1L << (BUCKET_BITS * LEVELS))
+            tick = currentTick + (1L << (BUCKET_BITS * LEVELS)) - 1;
+
+        int index = level * BUCKETS + (int) (tick >>> (BUCKET_BITS * level) & BUCKET_MASK);
+        next[slot] = buckets[index];
+        buckets[index] = slot;
+    }
+
+    /**
+     * Takes a free slot and a block large enough for the message, growing the
+     * slot state if no slot is free.
+     *
+     * @param length the length of the message in bytes
+     * @return the slot
+     * @throws QueueFullException if the maximum number of pending messages has been reached.
+     */
+    private int allocate(int length) throws QueueFullException {
+        if (pending >= maxPending)
+            throw new QueueFullException("The delayed message capacity has been reached.");
+
+        if (free == NONE) {
+            /* Grow geometrically so copying the slot state stays amortised */
+            int first = next.length;
+            int capacity = Math.max(INITIAL_SLOTS, first * 2);
+            classes = Arrays.copyOf(classes, capacity);
+            blocks = Arrays.copyOf(blocks, capacity);
+            due = Arrays.copyOf(due, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            attempts = Arrays.copyOf(attempts, capacity);
+            next = Arrays.copyOf(next, capacity);
+            for (int slot = capacity - 1; slot >= first; slot--) {
+                next[slot] = free;
+                free = slot;
+            }
+        }
+
+        int slot = free;
+        free = next[slot];
+        int sizeClass = sizeClass(length);
+        classes[slot] = (byte) sizeClass;
+        blocks[slot] = sizeClasses[sizeClass].allocate();
+        pending++;
+        return slot;
+    }
+
+    /**
+     * Returns a slot to the free list and its block to its size class.
+     *
+     * @param slot the message slot
+     */
+    private void release(int slot) {
+        sizeClasses[classes[slot]].release(blocks[slot]);
+        next[slot] = free;
+        free = slot;
+        pending--;
+    }
+
+    /**
+     * Returns the index of the smallest size class which holds a message.
+     *
+     * @param length the length of the message in bytes
+     * @return the size class
+     */
+    private static int sizeClass(int length) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(bits - MIN_BLOCK_BITS, 0);
+    }
+
+    /**
+     * SizeClass hands out blocks of one size from direct buffer slabs. Free
+     * blocks are kept on a stack, so blocks are reused most recently freed
+     * first.
+     */
+    private static final class SizeClass {
+        final int blockSize;
+        final int slabBlocks;
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        int[] free = new int[0];
+        int freeCount;
+
+        SizeClass(int blockSize) {
+            this.blockSize = blockSize;
+            this.slabBlocks = Math.max(1, SLAB_BYTES / blockSize);
+        }
+
+        /**
+         * Takes a free block, allocating a new slab if none is free.
+         */
+        int allocate() {
+            if (freeCount == 0) {
+                int first = slabs.size() * slabBlocks;
+                slabs.add(ByteBuffer.allocateDirect(slabBlocks * blockSize));
+                if (first + slabBlocks > free.length)
+                    free = Arrays.copyOf(free, Math.max(first + slabBlocks, free.length * 2));
+                for (int block = first + slabBlocks - 1; block >= first; block--)
+                    free[freeCount++] = block;
+            }
+            return free[--freeCount];
+        }
+
+        void release(int block) {
+            free[freeCount++] = block;
+        }
+
+        ByteBuffer slab(int block) {
+            return slabs.get(block / slabBlocks);
+        }
+
+        int offset(int block) {
+            return (block % slabBlocks) * blockSize;
+        }
+    }
+}
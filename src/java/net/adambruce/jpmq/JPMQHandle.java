@@ -0,0 +1,58 @@
+package net.adambruce.jpmq;
+
+/**
+ * JPMQHandle is a reference to a message queue descriptor shared through a
+ * {@link JPMQRegistry}.
+ *
+ * Closing a handle releases the reference but does not necessarily close the
+ * descriptor, which the registry keeps open for reuse until it is evicted.
+ * The queue returned by {@link #getQueue()} must not be closed directly.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQHandle implements AutoCloseable {
+
+    /* Owning registry and shared entry */
+    private final JPMQRegistry registry;
+    private final JPMQRegistry.Entry entry;
+    private boolean released;
+
+    /**
+     * Creates a new handle. Handles are only created by the registry.
+     *
+     * @param registry the owning registry
+     * @param entry the shared registry entry
+     */
+    JPMQHandle(JPMQRegistry registry, JPMQRegistry.Entry entry) {
+        this.registry = registry;
+        this.entry = entry;
+    }
+
+    /**
+     * Returns the shared message queue.
+     *
+     * @return the message queue
+     * @throws IllegalStateException if the handle has been closed.
+     * @since 1.1
+     */
+    public JPMQ getQueue() {
+        if (released)
+            throw new IllegalStateException("Handle has been closed.");
+        return entry.queue;
+    }
+
+    /**
+     * Releases the reference to the descriptor. Closing a handle more than
+     * once has no effect.
+     *
+     * @since 1.1
+     */
+    @Override
+    public void close() {
+        if (!released) {
+            released = true;
+            registry.release(entry);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package net.adambruce.jpmq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JPMQInspector lists and inspects message queues through the Linux mqueue
+ * filesystem without opening queue descriptors.
+ *
+ * Each queue appears as a file in the mqueue mount point whose contents
+ * report the number of bytes held in the queue and its notification state.
+ * The number of messages is not exposed by the filesystem and is only
+ * available through {@link JPMQ#getAttributes()}.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQInspector {
+
+    /** The default mount point of the mqueue filesystem */
+    public static final String DEFAULT_MOUNT_POINT = "/dev/mqueue";
+
+    /* Field names within a queue file */
+    private static final byte[] QSIZE      = {'Q', 'S', 'I', 'Z', 'E'};
+    private static final byte[] NOTIFY     = {'N', 'O', 'T', 'I', 'F', 'Y'};
+    private static final byte[] SIGNO      = {'S', 'I', 'G', 'N', 'O'};
+    private static final byte[] NOTIFY_PID = {'N', 'O', 'T', 'I', 'F', 'Y', '_', 'P', 'I', 'D'};
+
+    /** Large enough for every field the kernel reports */
+    private static final int BUFFER_SIZE = 256;
+
+    /* The mqueue mount point */
+    private final File mountPoint;
+
+    /**
+     * Creates a new inspector for the default mount point.
+     *
+     * @since 1.1
+     */
+    public JPMQInspector() {
+        this(DEFAULT_MOUNT_POINT);
+    }
+
+    /**
+     * Creates a new inspector for the given mount point.
+     *
+     * @param mountPoint the mount point of the mqueue filesystem
+     * @since 1.1
+     */
+    public JPMQInspector(String mountPoint) {
+        this.mountPoint = new File(mountPoint);
+    }
+
+    /**
+     * Returns the names of every message queue.
+     *
+     * @return the queue names, each including the leading /
+     *
+     * @throws IOException if the mount point cannot be read.
+     * @since 1.1
+     */
+    public List<String> listQueues() throws IOException {
+        String[] files = list();
+        List<String> names = new ArrayList<>(files.length);
+        for (String file : files)
+            names.add("/" + file);
+        return names;
+    }
+
+    /**
+     * Returns the status of a message queue.
+     *
+     * @param name the name of the queue, including the leading /
+     * @return the status of the queue
+     *
+     * @throws InvalidValueException if the name is not a valid queue name.
+     * @throws QueueDoesNotExistException if no queue exists with the given name.
+     * @throws IOException if the queue file cannot be read.
+     * @since 1.1
+     */
+    public JPMQQueueInfo inspect(String name) throws
+        InvalidValueException, QueueDoesNotExistException, IOException {
+
+        /* Queue names are a single path component, as mq_open requires */
+        String file = name.startsWith("/") ? name.substring(1) : "";
+        if (file.isEmpty() || file.indexOf('/') >= 0 || file.equals(".") || file.equals(".."))
+            throw new InvalidValueException("Invalid queue name.");
+
+        JPMQQueueInfo info = read(file, new byte[BUFFER_SIZE]);
+        if (info == null)
+            throw new QueueDoesNotExistException("No queue with the given name exists.");
+        return info;
+    }
+
+    /**
+     * Returns the status of every message queue. Queues unlinked while the
+     * mount point is being read are omitted.
+     *
+     * @return the status of every queue
+     *
+     * @throws IOException if the mount point or a queue file cannot be read.
+     * @since 1.1
+     */
+    public List<JPMQQueueInfo> inspectAll() throws IOException {
+        String[] files = list();
+        List<JPMQQueueInfo> infos = new ArrayList<>(files.length);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (String file : files) {
+            JPMQQueueInfo info = read(file, buffer);
+            if (info != null)
+                infos.add(info);
+        }
+        return infos;
+    }
+
+    /**
+     * Watches the mount point for queues being created or unlinked. Events are
+     * delivered to the listener from a daemon thread until the returned
+     * object is closed. On Linux the watch is backed by inotify, whose queue
+     * may overflow when many queues change at once, in which case the
+     * listener is told to rescan. An exception thrown by the listener is
+     * passed to the thread's uncaught exception handler and the watch
+     * continues.
+     *
+     * @param listener the listener to notify
+     * @return an object which stops the watch when closed
+     *
+     * @throws IOException if the watch cannot be registered.
+     * @since 1.1
+     */
+    public Closeable watch(final JPMQQueueListener listener) throws IOException {
+        final WatchService service = FileSystems.getDefault().newWatchService();
+        mountPoint.toPath().register(service,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        try {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                                listener.eventsLost();
+                            else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                                listener.queueCreated("/" + event.context());
+                            else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                                listener.queueDeleted("/" + event.context());
+                        } catch (RuntimeException e) {
+                            Thread current = Thread.currentThread();
+                            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                /* The watch has been closed */
+            }
+        }, "jpmq-inspector-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        return service;
+    }
+
+    /**
+     * Lists the queue files in the mount point.
+     *
+     * @return the file names
+     * @throws IOException if the mount point cannot be read.
+     */
+    private String[] list() throws IOException {
+        String[] files = mountPoint.list();
+        if (files == null)
+            throw new IOException("Unable to read mqueue mount point " + mountPoint + ".");
+        return files;
+    }
+
+    /**
+     * Reads and parses a queue file.
+     *
+     * @param file the file name, without the leading /
+     * @param buffer a buffer to read the file into
+     * @return the status of the queue, or null if the queue no longer exists
+     * @throws IOException if the queue file cannot be read.
+     */
+    private JPMQQueueInfo read(String file, byte[] buffer) throws IOException {
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(new File(mountPoint, file))) {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0)
+                length += n;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        long size = 0;
+        int notify = 0, signal = 0, notifyPid = 0;
+        int i = 0;
+        while (i < length) {
+            while (i < length && buffer[i] == ' ')
+                i++;
+            int keyStart = i;
+            while (i < length && buffer[i] != ':')
+                i++;
+            int keyEnd = i++;
+
+            boolean negative = i < length && buffer[i] == '-';
+            if (negative)
+                i++;
+            long value = 0;
+            while (i < length && buffer[i] >= '0' && buffer[i] <= '9')
+                value = value * 10 + (buffer[i++] - '0');
+            if (negative)
+                value = -value;
+
+            if (matches(buffer, keyStart, keyEnd, QSIZE))
+                size = value;
+            else if (matches(buffer, keyStart, keyEnd, NOTIFY))
+                notify = (int) value;
+            else if (matches(buffer, keyStart, keyEnd, SIGNO))
+                signal = (int) value;
+            else if (matches(buffer, keyStart, keyEnd, NOTIFY_PID))
+                notifyPid = (int) value;
+
+            while (i < length && buffer[i] != ' ')
+                i++;
+        }
+
+        return new JPMQQueueInfo("/" + file, size, notify, signal, notifyPid);
+    }
+
+    /**
+     * Compares a region of the buffer with a field name.
+     *
+     * @param buffer the buffer
+     * @param start the start of the region
+     * @param end the end of the region
+     * @param key the field name
+     * @return true if the region equals the field name
+     */
+    private static boolean matches(byte[] buffer, int start, int end, byte[] key) {
+        if (end - start != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++)
+            if (buffer[start + i] != key[i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * JPMQLZCodec is a byte oriented LZ77 codec using the LZ4 block format.
+ *
+ * Each sequence is a token holding the literal and match lengths, the
+ * literals, a two byte little endian match offset and any extra match length
+ * bytes. The final sequence holds only literals. The codec works directly on
+ * buffers using absolute indexes so that direct buffers are never copied to
+ * the heap.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+final class JPMQLZCodec {
+
+    /* Hash table size, as a power of two */
+    private static final int HASH_BITS = 12;
+
+    /** The number of entries in a compression hash table */
+    static final int HASH_TABLE_SIZE = 1 << HASH_BITS;
+
+    /* Format limits */
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    private JPMQLZCodec() {
+    }
+
+    /**
+     * Compresses a region of one buffer into another.
+     *
+     * @param src the buffer to compress
+     * @param srcOff the offset of the data to compress
+     * @param srcLen the length of the data to compress
+     * @param dst the buffer to compress into
+     * @param dstOff the offset to write the compressed data
+     * @param dstLen the space available for the compressed data
+     * @param table a hash table of HASH_TABLE_SIZE entries
+     * @return the compressed length, or -1 if it would exceed dstLen
+     */
+    static int compress(ByteBuffer src, int srcOff, int srcLen,
+                        ByteBuffer dst, int dstOff, int dstLen, int[] table) {
+
+        int srcEnd = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int findLimit = srcEnd - MATCH_FIND_LIMIT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        Arrays.fill(table, -1);
+        while (ip < findLimit) {
+            int sequence = src.getInt(ip);
+            int hash = hash(sequence);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || src.getInt(ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src.get(ref + matchLength) == src.get(ip + matchLength))
+                matchLength++;
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, dstEnd, ip - ref, matchLength);
+            if (op < 0)
+                return -1;
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        op = writeSequence(src, anchor, srcEnd - anchor, dst, op, dstEnd, 0, 0);
+        return op < 0 ? -1 : op - dstOff;
+    }
+
+    /**
+     * Decompresses a region of one buffer into another.
+     *
+     * @param src the buffer to decompress
+     * @param srcOff the offset of the compressed data
+     * @param srcLen the length of the compressed data
+     * @param dst the buffer to decompress into
+     * @param dstOff the offset to write the decompressed data
+     * @param dstLen the space available for the decompressed data
+     * @return the decompressed length, or -1 if the data is malformed or
+     * would exceed dstLen
+     */
+    static int decompress(ByteBuffer src, int srcOff, int srcLen,
+                          ByteBuffer dst, int dstOff, int dstLen) {
+
+        int srcEnd = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+
+        while (ip < srcEnd) {
+            int token = src.get(ip++) & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        return -1;
+                    b = src.get(ip++) & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (ip + literals > srcEnd || op + literals > dstEnd)
+                return -1;
+            for (int i = 0; i < literals; i++)
+                dst.put(op++, src.get(ip++));
+
+            if (ip == srcEnd)
+                break;
+
+            if (ip + 2 > srcEnd)
+                return -1;
+            int offset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+            ip += 2;
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd)
+                        return -1;
+                    b = src.get(ip++) & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff || op + matchLength > dstEnd)
+                return -1;
+            for (int i = 0; i < matchLength; i++)
+                dst.put(op++, dst.get(ref++));
+        }
+
+        return op - dstOff;
+    }
+
+    /**
+     * Writes a sequence. A match length of 0 writes the final, literal only
+     * sequence.
+     *
+     * @return the new output offset, or -1 if the sequence does not fit
+     */
+    private static int writeSequence(ByteBuffer src, int literalOff, int literals,
+                                     ByteBuffer dst, int op, int dstEnd, int offset, int matchLength) {
+
+        int extraMatch = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        int needed = 1 + literals + (literals >= 15 ? 1 + (literals - 15) / 255 : 0);
+        if (matchLength != 0)
+            needed += 2 + (extraMatch >= 15 ? 1 + (extraMatch - 15) / 255 : 0);
+        if (op + needed > dstEnd)
+            return -1;
+
+        int token = Math.min(literals, 15) << 4 | Math.min(extraMatch, 15);
+        dst.put(op++, (byte) token);
+        if (literals >= 15)
+            op = writeLength(dst, op, literals - 15);
+        for (int i = 0; i < literals; i++)
+            dst.put(op++, src.get(literalOff + i));
+
+        if (matchLength != 0) {
+            dst.put(op++, (byte) offset);
+            dst.put(op++, (byte) (offset >>> 8));
+            if (extraMatch >= 15)
+                op = writeLength(dst, op, extraMatch - 15);
+        }
+        return op;
+    }
+
+    /**
+     * Writes the extra bytes of a length which did not fit in the token.
+     */
+    private static int writeLength(ByteBuffer dst, int op, int length) {
+        while (length >= 255) {
+            dst.put(op++, (byte) 255);
+            length -= 255;
+        }
+        dst.put(op++, (byte) length);
+        return op;
+    }
+
+    /**
+     * Hashes four bytes into a hash table index.
+     */
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
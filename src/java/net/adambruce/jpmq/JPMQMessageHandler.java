@@ -0,0 +1,20 @@
+package net.adambruce.jpmq;
+
+/**
+ * A JPMQMessageHandler receives messages dispatched by a
+ * {@link JPMQScheduler}.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public interface JPMQMessageHandler {
+
+    /**
+     * Called for each message received.
+     *
+     * @param queue the queue the message was received from
+     * @param message the message
+     * @since 1.1
+     */
+    void handle(JPMQ queue, String message);
+}
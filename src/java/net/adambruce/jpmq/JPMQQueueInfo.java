@@ -0,0 +1,93 @@
+package net.adambruce.jpmq;
+
+/**
+ * JPMQQueueInfo holds the status of a message queue as reported by the
+ * Linux mqueue filesystem.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQQueueInfo {
+
+    /** The name of the queue, including the leading / */
+    private final String name;
+    /** The number of bytes held in all messages in the queue (QSIZE) */
+    private final long size;
+    /** The notification type registered with mq_notify (NOTIFY) */
+    private final int notify;
+    /** The signal delivered on notification (SIGNO) */
+    private final int signal;
+    /** The process registered for notification, or 0 if none (NOTIFY_PID) */
+    private final int notifyPid;
+
+    /**
+     * Creates a new JPMQQueueInfo object with the given arguments.
+     *
+     * @param name the name of the queue
+     * @param size the number of bytes held in the queue
+     * @param notify the notification type
+     * @param signal the notification signal
+     * @param notifyPid the process registered for notification
+     */
+    public JPMQQueueInfo(String name, long size, int notify, int signal, int notifyPid) {
+        this.name = name;
+        this.size = size;
+        this.notify = notify;
+        this.signal = signal;
+        this.notifyPid = notifyPid;
+    }
+
+    /**
+     * Returns the name of the queue.
+     *
+     * @return the name of the queue
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of bytes held in all messages in the queue.
+     *
+     * @return the number of bytes in the queue
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the notification type registered with mq_notify.
+     *
+     * @return the notification type
+     */
+    public int getNotify() {
+        return notify;
+    }
+
+    /**
+     * Returns the signal delivered on notification.
+     *
+     * @return the notification signal
+     */
+    public int getSignal() {
+        return signal;
+    }
+
+    /**
+     * Returns the process registered for notification.
+     *
+     * @return the process ID, or 0 if no process is registered
+     */
+    public int getNotifyPid() {
+        return notifyPid;
+    }
+
+    /**
+     * Returns whether the queue is empty.
+     *
+     * @return true if the queue holds no message bytes
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
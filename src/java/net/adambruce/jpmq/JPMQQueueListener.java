@@ -0,0 +1,38 @@
+package net.adambruce.jpmq;
+
+/**
+ * A JPMQQueueListener is notified when message queues are created or
+ * unlinked.
+ *
+ * @see JPMQInspector#watch(JPMQQueueListener)
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public interface JPMQQueueListener {
+
+    /**
+     * Called when a message queue is created.
+     *
+     * @param name the name of the queue, including the leading /
+     * @since 1.1
+     */
+    void queueCreated(String name);
+
+    /**
+     * Called when a message queue is unlinked.
+     *
+     * @param name the name of the queue, including the leading /
+     * @since 1.1
+     */
+    void queueDeleted(String name);
+
+    /**
+     * Called when the watch has lost events, for example because queues were
+     * created or unlinked faster than they could be reported. The listener
+     * must rescan with {@link JPMQInspector#listQueues()} to find the current
+     * set of queues.
+     *
+     * @since 1.1
+     */
+    void eventsLost();
+}
@@ -0,0 +1,368 @@
+package net.adambruce.jpmq;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * JPMQRegistry caches open message queue descriptors so that repeated opens
+ * of the same queue reuse a single descriptor.
+ *
+ * Descriptors are keyed by queue name and access mode (O_RDONLY, O_WRONLY,
+ * O_RDWR, O_NONBLOCK and O_CLOEXEC) and handed out as reference counted
+ * {@link JPMQHandle}s. A descriptor with no remaining references becomes
+ * idle, and idle descriptors are closed once they exceed the idle timeout
+ * or, least recently used first, when the idle or open descriptor limits
+ * are reached. When mq_open reports that the process or system descriptor
+ * limit has been reached, every idle descriptor is closed and the open is
+ * retried once.
+ *
+ * Opens with O_EXCL always call mq_open, so they fail with
+ * {@link QueueExistsException} as usual, and a queue they create replaces
+ * any cached descriptors for the same name. Otherwise the registry cannot
+ * tell when a queue is unlinked, so {@link #invalidate(String)} should be
+ * called after unlinking a queue which may be cached, or cached descriptors
+ * will keep referring to the unlinked queue.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQRegistry {
+
+    /** The default maximum number of idle descriptors */
+    public static final int DEFAULT_MAX_IDLE = 64;
+    /** The default maximum number of open descriptors */
+    public static final int DEFAULT_MAX_OPEN = 1024;
+    /** The default idle timeout in milliseconds */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+
+    /** The open flags which distinguish one cached descriptor from another */
+    private static final int KEY_FLAGS = JPMQ.O_RDONLY | JPMQ.O_WRONLY | JPMQ.O_RDWR
+        | JPMQ.O_NONBLOCK | JPMQ.O_CLOEXEC;
+
+    /* The process wide registry */
+    private static final JPMQRegistry INSTANCE =
+        new JPMQRegistry(DEFAULT_MAX_IDLE, DEFAULT_MAX_OPEN, DEFAULT_IDLE_TIMEOUT);
+
+    /* Eviction limits */
+    private final int maxIdle;
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+
+    /* All open descriptors, and the idle subset in least recently used order */
+    private final HashMap<String, Entry> open = new HashMap<>();
+    private final LinkedHashMap<String, Entry> idle = new LinkedHashMap<>();
+
+    /**
+     * Creates a new registry. Most applications should share the registry
+     * returned by {@link #getInstance()}.
+     *
+     * @param maxIdle the maximum number of idle descriptors
+     * @param maxOpen the maximum number of open descriptors
+     * @param idleTimeoutMillis the time in milliseconds after which an idle
+     * descriptor is closed
+     * @since 1.1
+     */
+    public JPMQRegistry(int maxIdle, int maxOpen, long idleTimeoutMillis) {
+        this.maxIdle = maxIdle;
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+    }
+
+    /**
+     * Returns the process wide registry.
+     *
+     * @return the process wide registry
+     * @since 1.1
+     */
+    public static JPMQRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a handle to an existing message queue, opening a descriptor only
+     * if no cached descriptor exists for the name and access mode.
+     *
+     * @param name the name of the message queue
+     * @param oflags the open flags (O_)
+     * @return a handle to the message queue
+     *
+     * @throws AccessException if the process does not have permission to access the queue, or an invalid queue name
+     * has been provided.
+     * @throws InvalidValueException if the queue name is invalid.
+     * @throws DescriptorLimitException if the maximum number of process or global file / queue descriptors has been
+     * reached.
+     * @throws NameTooLongException if the queue name is too long.
+     * @throws QueueDoesNotExistException if no queue exists with the given name.
+     * @throws InsufficientMemoryException if there is insufficient memory to open the queue.
+     * @since 1.1
+     */
+    public synchronized JPMQHandle acquire(String name, int oflags) throws
+        AccessException, InvalidValueException, DescriptorLimitException,
+        NameTooLongException, QueueDoesNotExistException, InsufficientMemoryException {
+
+        String key = key(name, oflags);
+        Entry entry = reuse(key);
+        if (entry == null) {
+            reserve();
+            JPMQ queue;
+            try {
+                queue = new JPMQ(name, oflags);
+            } catch (DescriptorLimitException e) {
+                if (idle.isEmpty())
+                    throw e;
+                evictIdle();
+                queue = new JPMQ(name, oflags);
+            }
+            entry = register(key, queue);
+        }
+        return new JPMQHandle(this, entry);
+    }
+
+    /**
+     * Returns a handle to a message queue, opening or creating it with
+     * attributes only if no cached descriptor exists for the name and access
+     * mode. With O_EXCL the queue is always created, and any cached
+     * descriptors for the name are invalidated once it has been.
+     *
+     * @param name the name of the message queue
+     * @param oflags the open flags (O_)
+     * @param mode the file mode
+     * @param attributes the message queue attributes
+     * @return a handle to the message queue
+     *
+     * @throws AccessException if the process does not have permission to access the queue, or an invalid queue name
+     * has been provided.
+     * @throws InvalidValueException if the queue name is invalid.
+     * @throws DescriptorLimitException if the maximum number of process or global file / queue descriptors has been
+     * reached.
+     * @throws NameTooLongException if the queue name is too long.
+     * @throws QueueExistsException if a queue with the given name already exists.
+     * @throws InsufficientMemoryException if there is insufficient memory to open the queue.
+     * @throws InsufficientSpaceException if there is insufficient space to create the queue.
+     * @since 1.1
+     */
+    public synchronized JPMQHandle acquire(String name, int oflags, int mode, JPMQAttributes attributes) throws
+        AccessException, QueueExistsException, InvalidValueException, DescriptorLimitException,
+        NameTooLongException, InsufficientMemoryException, InsufficientSpaceException {
+
+        String key = key(name, oflags);
+        boolean exclusive = (oflags & JPMQ.O_EXCL) != 0;
+        Entry entry = exclusive ? null : reuse(key);
+        if (entry == null) {
+            reserve();
+            JPMQ queue;
+            try {
+                queue = new JPMQ(name, oflags, mode, attributes);
+            } catch (DescriptorLimitException e) {
+                if (idle.isEmpty())
+                    throw e;
+                evictIdle();
+                queue = new JPMQ(name, oflags, mode, attributes);
+            }
+            if (exclusive)
+                invalidate(name);
+            entry = register(key, queue);
+        }
+        return new JPMQHandle(this, entry);
+    }
+
+    /**
+     * Removes every cached descriptor for a queue name, typically after the
+     * queue has been unlinked. Idle descriptors are closed immediately and
+     * descriptors still in use are closed when their last handle is closed,
+     * so later acquires open the queue afresh.
+     *
+     * @param name the name of the message queue
+     * @since 1.1
+     */
+    public synchronized void invalidate(String name) {
+        Iterator<Entry> it = open.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.name.equals(name))
+                continue;
+            it.remove();
+            entry.detached = true;
+            if (idle.remove(entry.key) != null)
+                close(entry);
+        }
+    }
+
+    /**
+     * Closes every idle descriptor.
+     *
+     * @since 1.1
+     */
+    public synchronized void evictIdle() {
+        Iterator<Entry> it = idle.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            evict(entry);
+        }
+    }
+
+    /**
+     * Returns the number of open descriptors, including idle descriptors.
+     *
+     * @return the number of open descriptors
+     * @since 1.1
+     */
+    public synchronized int getOpenDescriptors() {
+        return open.size();
+    }
+
+    /**
+     * Returns the number of idle descriptors.
+     *
+     * @return the number of idle descriptors
+     * @since 1.1
+     */
+    public synchronized int getIdleDescriptors() {
+        return idle.size();
+    }
+
+    /**
+     * Releases a reference to an entry, making it idle when no references
+     * remain.
+     *
+     * @param entry the entry to release
+     */
+    synchronized void release(Entry entry) {
+        if (--entry.references > 0)
+            return;
+        if (entry.detached) {
+            close(entry);
+            return;
+        }
+
+        entry.idleSince = System.nanoTime();
+        idle.put(entry.key, entry);
+        expire(entry.idleSince);
+        while (idle.size() > maxIdle)
+            evictEldest();
+    }
+
+    /**
+     * Takes a reference to a cached entry, if one exists.
+     *
+     * @param key the registry key
+     * @return the entry, or null if no descriptor is cached
+     */
+    private Entry reuse(String key) {
+        expire(System.nanoTime());
+        Entry entry = open.get(key);
+        if (entry != null) {
+            if (entry.references++ == 0)
+                idle.remove(key);
+        }
+        return entry;
+    }
+
+    /**
+     * Makes room for a new descriptor by closing the least recently used idle
+     * descriptor when the open descriptor limit has been reached.
+     *
+     * @throws DescriptorLimitException if the limit has been reached and no
+     * descriptor is idle.
+     */
+    private void reserve() throws DescriptorLimitException {
+        if (open.size() < maxOpen)
+            return;
+        if (idle.isEmpty())
+            throw new DescriptorLimitException("Registry descriptor limit reached.");
+        evictEldest();
+    }
+
+    /**
+     * Adds a newly opened descriptor with one reference.
+     *
+     * @param key the registry key
+     * @param queue the open message queue
+     * @return the new entry
+     */
+    private Entry register(String key, JPMQ queue) {
+        Entry entry = new Entry(key, queue.getName(), queue);
+        open.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Closes idle descriptors which have exceeded the idle timeout.
+     *
+     * @param now the current time in nanoseconds
+     */
+    private void expire(long now) {
+        Iterator<Entry> it = idle.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.idleSince < idleTimeoutNanos)
+                break;
+            it.remove();
+            evict(entry);
+        }
+    }
+
+    /**
+     * Closes the least recently used idle descriptor.
+     */
+    private void evictEldest() {
+        Iterator<Entry> it = idle.values().iterator();
+        Entry entry = it.next();
+        it.remove();
+        evict(entry);
+    }
+
+    /**
+     * Closes a descriptor and removes it from the registry.
+     *
+     * @param entry the entry to close
+     */
+    private void evict(Entry entry) {
+        open.remove(entry.key);
+        close(entry);
+    }
+
+    /**
+     * Closes the descriptor held by an entry.
+     *
+     * @param entry the entry to close
+     */
+    private static void close(Entry entry) {
+        try {
+            entry.queue.close();
+        } catch (BadDescriptorException e) {
+            /* The descriptor is already gone, so there is nothing to release */
+        }
+    }
+
+    /**
+     * Returns the registry key for a queue name and open flags.
+     *
+     * @param name the name of the message queue
+     * @param oflags the open flags (O_)
+     * @return the registry key
+     */
+    private static String key(String name, int oflags) {
+        return (oflags & KEY_FLAGS) + name;
+    }
+
+    /**
+     * Entry holds a cached descriptor and its reference count.
+     */
+    static final class Entry {
+        final String key;
+        final String name;
+        final JPMQ queue;
+        int references = 1;
+        long idleSince;
+        boolean detached;
+
+        Entry(String key, String name, JPMQ queue) {
+            this.key = key;
+            this.name = name;
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package net.adambruce.jpmq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JPMQScheduler receives from several queues on one thread, sharing the
+ * consumer between them by weight.
+ *
+ * Each call to {@link #poll(JPMQMessageHandler, int)} waits for any queue to
+ * become readable and then serves the ready queues using deficit round
+ * robin. Every ready queue earns its weight multiplied by the quantum in
+ * bytes each round and is charged the encoded length of each message it
+ * receives. It is served while its deficit remains positive, so over
+ * time each backlogged queue receives throughput in proportion to its weight
+ * and no queue waits more than one round while it has messages. Within a
+ * queue, messages are received in POSIX priority order.
+ *
+ * The scheduler only receives as many messages as a queue held when it was
+ * polled, so it never blocks on an empty queue provided it is the only
+ * consumer of its queues. Queues shared with other consumers should be
+ * opened with O_NONBLOCK. A scheduler must only be used from one thread.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQScheduler {
+
+    /* Load the shared object */
+    static {
+        System.loadLibrary("jpmq");
+    }
+
+    /* Scheduling limits */
+    private final int quantum;
+    private final int maxBatch;
+
+    /* Scheduled queues, their weights and their deficits, in round robin order */
+    private final List<JPMQ> queues = new ArrayList<>();
+    private int[] weights = new int[0];
+    private long[] deficits = new long[0];
+    private byte[][] descriptors = new byte[0][];
+    private int[] depths = new int[0];
+    private int next;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param quantum the number of bytes a queue of weight 1 may receive each round
+     * @param maxBatch the maximum number of messages received from one queue
+     * each round, which bounds the time other queues wait
+     *
+     * @throws InvalidValueException if the quantum or batch limit is invalid.
+     * @since 1.1
+     */
+    public JPMQScheduler(int quantum, int maxBatch) throws InvalidValueException {
+        if (quantum < 1)
+            throw new InvalidValueException("Quantum must be at least 1.");
+        if (maxBatch < 1)
+            throw new InvalidValueException("Batch limit must be at least 1.");
+
+        this.quantum = quantum;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Adds a queue to the scheduler, or changes its weight if it has already
+     * been added.
+     *
+     * @param queue the queue to receive from
+     * @param weight the share of the consumer given to the queue
+     *
+     * @throws InvalidValueException if the weight is less than 1.
+     * @since 1.1
+     */
+    public void add(JPMQ queue, int weight) throws InvalidValueException {
+        if (weight < 1)
+            throw new InvalidValueException("Weight must be at least 1.");
+
+        int index = queues.indexOf(queue);
+        if (index >= 0) {
+            weights[index] = weight;
+            return;
+        }
+
+        queues.add(queue);
+        int count = queues.size();
+        weights = Arrays.copyOf(weights, count);
+        deficits = Arrays.copyOf(deficits, count);
+        descriptors = Arrays.copyOf(descriptors, count);
+        depths = new int[count];
+        weights[count - 1] = weight;
+        descriptors[count - 1] = queue.getDescriptor();
+    }
+
+    /**
+     * Removes a queue from the scheduler.
+     *
+     * @param queue the queue to remove
+     * @since 1.1
+     */
+    public void remove(JPMQ queue) {
+        int index = queues.indexOf(queue);
+        if (index < 0)
+            return;
+
+        queues.remove(index);
+        weights = removeIndex(weights, index);
+        deficits = removeIndex(deficits, index);
+        byte[][] remaining = new byte[queues.size()][];
+        for (int i = 0; i < remaining.length; i++)
+            remaining[i] = queues.get(i).getDescriptor();
+        descriptors = remaining;
+        depths = new int[queues.size()];
+        if (next >= queues.size())
+            next = 0;
+    }
+
+    /**
+     * Waits for messages and dispatches one round of them to the handler.
+     *
+     * @param handler the handler to dispatch messages to
+     * @param timeout the maximum time to wait for a message in milliseconds,
+     * 0 to return immediately or -1 to wait forever
+     * @return the number of messages dispatched
+     *
+     * @throws BadDescriptorException if a file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than a queue message size.
+     * @throws InsufficientMemoryException if there is insufficient memory to poll the queues.
+     * @since 1.1
+     */
+    public int poll(JPMQMessageHandler handler, int timeout) throws
+        BadDescriptorException, InterruptException, MessageLengthException,
+        InsufficientMemoryException {
+
+        int count = queues.size();
+        if (count == 0 || nativePoll(descriptors, timeout, depths) == 0)
+            return 0;
+
+        int dispatched = 0;
+        for (int visited = 0; visited < count; visited++) {
+            int i = next;
+            next = (next + 1) % count;
+
+            int depth = depths[i];
+            if (depth == 0) {
+                deficits[i] = Math.min(deficits[i], 0);
+                continue;
+            }
+
+            JPMQ queue = queues.get(i);
+            deficits[i] += (long) quantum * weights[i];
+            int batch = Math.min(depth, maxBatch);
+            int received = 0;
+            while (received < batch && deficits[i] > 0) {
+                String message;
+                try {
+                    message = queue.receive();
+                } catch (QueueEmptyException e) {
+                    /* Another consumer emptied the queue */
+                    break;
+                }
+                received++;
+                deficits[i] -= Math.max(1, encodedLength(message));
+                handler.handle(queue, message);
+            }
+            dispatched += received;
+
+            /* A queue which has been drained keeps no credit, as in DRR, but keeps any debt */
+            if (received == depth)
+                deficits[i] = Math.min(deficits[i], 0);
+        }
+        return dispatched;
+    }
+
+    /**
+     * Returns the scheduled queues in round robin order.
+     *
+     * @return the scheduled queues
+     * @since 1.1
+     */
+    public List<JPMQ> getQueues() {
+        return new ArrayList<>(queues);
+    }
+
+    /**
+     * Returns the number of bytes a message occupied in its queue. Messages
+     * are received as modified UTF-8, so this is that encoding's length.
+     *
+     * @param message the received message
+     * @return the length of the message in bytes
+     */
+    private static int encodedLength(String message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c != 0 && c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    private static int[] removeIndex(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static long[] removeIndex(long[] array, int index) {
+        long[] result = new long[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    /***************************************************/
+    /*                     Native                      */
+    /***************************************************/
+
+    /**
+     * Native wrapper for poll(struct pollfd *fds, nfds_t nfds, int timeout) and
+     * mq_getattr(mqd_t mqdes, struct mq_attr *attr);
+     * Waits for any of the queues to hold a message and reports the number of
+     * messages in each ready queue.
+     *
+     * @param descriptors the message queue descriptors
+     * @param timeout the maximum time to wait in milliseconds, or -1 to wait forever
+     * @param depths receives the number of messages in each ready queue, or 0
+     * @return the number of ready queues
+     *
+     * @throws BadDescriptorException if a file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws InsufficientMemoryException if there is insufficient memory to poll the queues.
+     * @since 1.1
+     */
+    private native int nativePoll(byte[][] descriptors, int timeout, int[] depths) throws
+        BadDescriptorException, InterruptException, InsufficientMemoryException;
+}
@@ -0,0 +1,342 @@
+package net.adambruce.jpmq;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JPMQTopic publishes each message to a set of subscriber queues.
+ *
+ * The message is converted once and every mq_send is issued from a single
+ * native call. Failures are reported per subscriber rather than aborting the
+ * publish, and messages which could not be delivered to a full or slow
+ * subscriber are either dropped or parked, depending on the topic policy.
+ * Parked messages are retried in order before any newer message is sent to
+ * that subscriber.
+ *
+ * Subscribers should be opened with O_NONBLOCK, or messages published with
+ * {@link #timedPublish(String, int, JPMQTimespec)}, otherwise a single full
+ * subscriber blocks the whole publish.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQTopic {
+
+    /* Load the shared object */
+    static {
+        System.loadLibrary("jpmq");
+    }
+
+    /** The message was sent to the subscriber */
+    public static final int DELIVERED      = 0;
+    /** The subscriber queue was full and the message was dropped */
+    public static final int FULL           = 1;
+    /** The send timed out and the message was dropped */
+    public static final int TIMED_OUT      = 2;
+    /** The subscriber could not accept the message, so it was parked */
+    public static final int PARKED         = 3;
+    /** The send was interrupted by a signal handler */
+    public static final int INTERRUPTED    = 4;
+    /** The subscriber descriptor is invalid */
+    public static final int BAD_DESCRIPTOR = 5;
+    /** The message is longer than the subscriber queue message size */
+    public static final int TOO_LONG       = 6;
+    /** The priority was invalid, so the message was not sent */
+    public static final int INVALID_ARGUMENT = 7;
+
+    /** Drop messages which a subscriber cannot accept */
+    public static final int DROP = 0;
+    /** Park messages which a subscriber cannot accept, up to a limit */
+    public static final int PARK = 1;
+
+    /* Delivery policy */
+    private final int policy;
+    private final int maxParked;
+
+    /* Subscribers and their descriptors, in subscription order */
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private byte[][] descriptors = new byte[0][];
+    private int parkedSubscribers;
+
+    /**
+     * Creates a new topic.
+     *
+     * @param policy the policy for messages a subscriber cannot accept
+     * (DROP or PARK)
+     * @param maxParked the maximum number of messages parked per subscriber
+     *
+     * @throws InvalidValueException if the policy or parking limit is invalid.
+     * @since 1.1
+     */
+    public JPMQTopic(int policy, int maxParked) throws InvalidValueException {
+        if (policy != DROP && policy != PARK)
+            throw new InvalidValueException("Policy must be DROP or PARK.");
+        if (maxParked < 0)
+            throw new InvalidValueException("Parking limit must not be negative.");
+
+        this.policy = policy;
+        this.maxParked = maxParked;
+    }
+
+    /**
+     * Adds a subscriber queue. A queue may only be subscribed once.
+     *
+     * @param queue the queue to subscribe
+     * @since 1.1
+     */
+    public synchronized void subscribe(JPMQ queue) {
+        if (indexOf(queue) >= 0)
+            return;
+        subscribers.add(new Subscriber(queue));
+        rebuildDescriptors();
+    }
+
+    /**
+     * Removes a subscriber queue, discarding any messages parked for it.
+     *
+     * @param queue the queue to unsubscribe
+     * @since 1.1
+     */
+    public synchronized void unsubscribe(JPMQ queue) {
+        int index = indexOf(queue);
+        if (index < 0)
+            return;
+        if (!subscribers.remove(index).parked.isEmpty())
+            parkedSubscribers--;
+        rebuildDescriptors();
+    }
+
+    /**
+     * Returns the subscriber queues in subscription order. Publish results
+     * are reported in the same order.
+     *
+     * @return the subscriber queues
+     * @since 1.1
+     */
+    public synchronized List<JPMQ> getSubscribers() {
+        List<JPMQ> queues = new ArrayList<>(subscribers.size());
+        for (Subscriber subscriber : subscribers)
+            queues.add(subscriber.queue);
+        return queues;
+    }
+
+    /**
+     * Returns the number of messages parked for a subscriber.
+     *
+     * @param queue the subscriber queue
+     * @return the number of parked messages, or 0 if the queue is not subscribed
+     * @since 1.1
+     */
+    public synchronized int getParkedMessages(JPMQ queue) {
+        int index = indexOf(queue);
+        return index < 0 ? 0 : subscribers.get(index).parked.size();
+    }
+
+    /**
+     * Publishes a message to every subscriber.
+     *
+     * @param message the message to send
+     * @param priority the priority of the message
+     * @return the outcome for each subscriber, in subscription order
+     * @since 1.1
+     */
+    public synchronized int[] publish(String message, int priority) {
+        try {
+            return publish(message, priority, null);
+        } catch (InvalidValueException e) {
+            /* Only an invalid timeout raises InvalidValueException */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Publishes a message to every subscriber, waiting until the timeout for
+     * each full subscriber.
+     *
+     * @param message the message to send
+     * @param priority the priority of the message
+     * @param timespec the timeout for sending the message
+     * @return the outcome for each subscriber, in subscription order
+     *
+     * @throws InvalidValueException if the given timeout is invalid, in which case nothing is sent.
+     * @since 1.1
+     */
+    public synchronized int[] timedPublish(String message, int priority, JPMQTimespec timespec) throws
+        InvalidValueException {
+
+        return publish(message, priority, timespec);
+    }
+
+    /**
+     * Retries parked messages, then publishes the message in one native call
+     * to every subscriber which has nothing left parked. The arguments are
+     * checked first so that an invalid publish sends nothing at all.
+     */
+    private int[] publish(String message, int priority, JPMQTimespec timespec) throws InvalidValueException {
+        int count = subscribers.size();
+        int[] results = new int[count];
+
+        if (timespec != null && (timespec.getSeconds() < 0 || timespec.getNanoSeconds() < 0
+                                 || timespec.getNanoSeconds() >= 1000000000))
+            throw new InvalidValueException("Invalid timeout.");
+        if (priority < 0 || priority >= JPMQ.PRIORITY_MAX) {
+            Arrays.fill(results, INVALID_ARGUMENT);
+            return results;
+        }
+
+        if (parkedSubscribers > 0) {
+            for (Subscriber subscriber : subscribers)
+                retryParked(subscriber, timespec);
+        }
+
+        if (parkedSubscribers == 0) {
+            nativePublish(descriptors, message, priority, timespec, results);
+        } else {
+            int ready = 0;
+            for (Subscriber subscriber : subscribers)
+                if (subscriber.parked.isEmpty())
+                    ready++;
+
+            byte[][] readyDescriptors = new byte[ready][];
+            int[] readyResults = new int[ready];
+            for (int i = 0, j = 0; i < count; i++)
+                if (subscribers.get(i).parked.isEmpty())
+                    readyDescriptors[j++] = descriptors[i];
+
+            if (ready > 0)
+                nativePublish(readyDescriptors, message, priority, timespec, readyResults);
+
+            for (int i = 0, j = 0; i < count; i++)
+                results[i] = subscribers.get(i).parked.isEmpty() ? readyResults[j++] : FULL;
+        }
+
+        if (policy == PARK) {
+            for (int i = 0; i < count; i++) {
+                if (results[i] == FULL || results[i] == TIMED_OUT)
+                    results[i] = park(subscribers.get(i), message, priority, results[i]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends parked messages to a subscriber until its queue stops accepting
+     * them.
+     *
+     * @param subscriber the subscriber
+     * @param timespec the timeout for each send, or null to send without one
+     */
+    private void retryParked(Subscriber subscriber, JPMQTimespec timespec) throws InvalidValueException {
+        ArrayDeque<Parked> parked = subscriber.parked;
+        if (parked.isEmpty())
+            return;
+
+        try {
+            while (!parked.isEmpty()) {
+                Parked next = parked.peek();
+                if (timespec == null)
+                    subscriber.queue.send(next.message, next.priority);
+                else
+                    subscriber.queue.timedSend(next.message, next.priority, timespec);
+                parked.poll();
+            }
+        } catch (QueueFullException | TimeoutException | InterruptException e) {
+            /* The subscriber is still slow, so keep the rest parked */
+        } catch (BadDescriptorException | MessageLengthException e) {
+            /* The subscriber can never accept the parked messages */
+            parked.clear();
+        }
+
+        if (parked.isEmpty())
+            parkedSubscribers--;
+    }
+
+    /**
+     * Parks a message for a subscriber if there is room.
+     *
+     * @param subscriber the subscriber
+     * @param message the message
+     * @param priority the priority of the message
+     * @param status the status to report if the message cannot be parked
+     * @return PARKED, or the given status if the parking limit was reached
+     */
+    private int park(Subscriber subscriber, String message, int priority, int status) {
+        ArrayDeque<Parked> parked = subscriber.parked;
+        if (parked.size() >= maxParked)
+            return status;
+        if (parked.isEmpty())
+            parkedSubscribers++;
+        parked.add(new Parked(message, priority));
+        return PARKED;
+    }
+
+    /**
+     * Returns the index of a subscriber queue.
+     *
+     * @param queue the queue
+     * @return the index, or -1 if the queue is not subscribed
+     */
+    private int indexOf(JPMQ queue) {
+        for (int i = 0; i < subscribers.size(); i++)
+            if (subscribers.get(i).queue == queue)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Rebuilds the descriptor array passed to the native publish.
+     */
+    private void rebuildDescriptors() {
+        descriptors = new byte[subscribers.size()][];
+        for (int i = 0; i < descriptors.length; i++)
+            descriptors[i] = subscribers.get(i).queue.getDescriptor();
+    }
+
+    /**
+     * Subscriber holds a subscriber queue and its parked messages.
+     */
+    private static final class Subscriber {
+        final JPMQ queue;
+        final ArrayDeque<Parked> parked = new ArrayDeque<>();
+
+        Subscriber(JPMQ queue) {
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * Parked holds a message waiting to be retried.
+     */
+    private static final class Parked {
+        final String message;
+        final int priority;
+
+        Parked(String message, int priority) {
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+
+    /***************************************************/
+    /*                     Native                      */
+    /***************************************************/
+
+    /**
+     * Native wrapper for mq_send / mq_timedsend over several descriptors.
+     * Sends the message to each descriptor in turn, recording the outcome for
+     * each rather than stopping at the first failure.
+     *
+     * @param descriptors the message queue descriptors
+     * @param message the message to send, as its modified UTF-8 bytes
+     * @param priority the priority of the message
+     * @param timespec the timeout for each send, or null to send without one
+     * @param results receives the outcome for each descriptor
+     *
+     * @throws InvalidValueException if the given timeout is invalid, in which case nothing is sent.
+     * @since 1.1
+     */
+    private native void nativePublish(byte[][] descriptors, String message, int priority,
+                                      JPMQTimespec timespec, int[] results) throws InvalidValueException;
+}
@@ -0,0 +1,389 @@
+package net.adambruce.jpmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JPMQTracer measures how long messages spend in a queue.
+ *
+ * Every traced message begins with a HEADER_SIZE byte envelope holding a
+ * CLOCK_MONOTONIC timestamp, a producer ID and a sequence number. The
+ * timestamp is taken inside the native send immediately before mq_send, and
+ * the residence time is computed inside the native receive immediately after
+ * mq_receive, so the measurement excludes JNI and caller overhead. Sequence
+ * numbers are kept separately for each producer and priority, since POSIX
+ * queues deliver higher priorities first, and are used to count lost and
+ * reordered messages. Residence times are recorded in a
+ * {@link JPMQHistogram}.
+ *
+ * Every producer on a traced queue must send through a JPMQTracer, and each
+ * must use a distinct producer ID. Timestamps are only comparable between
+ * processes on the same host.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public class JPMQTracer {
+
+    /* Load the shared object */
+    static {
+        System.loadLibrary("jpmq");
+    }
+
+    /** The size of the trace header at the start of each message */
+    public static final int HEADER_SIZE = 16;
+
+    /* Header layout, after the 8 byte timestamp written by the native code */
+    private static final int PRODUCER_OFFSET = 8;
+    private static final int SEQUENCE_OFFSET = 12;
+
+    /* Queue and producer identity */
+    private final JPMQ queue;
+    private final int producerId;
+    private final int messageSize;
+
+    /* Send state. Counters are volatile so that they can be read while a call blocks */
+    private final Object sendLock = new Object();
+    private final ByteBuffer sendBuffer;
+    private int[] sequences = new int[1];
+    private volatile long sent;
+
+    /* Receive state */
+    private final Object receiveLock = new Object();
+    private final ByteBuffer receiveBuffer;
+    /* Filled by the native receive with the residence time and priority */
+    private final long[] trace = new long[2];
+    private final JPMQHistogram histogram = new JPMQHistogram();
+    private final SequenceTable producers = new SequenceTable();
+    private volatile long received;
+    private volatile long lost;
+    private volatile long reordered;
+
+    /**
+     * Creates a new tracer for the given queue.
+     *
+     * @param queue the queue to send to and receive from
+     * @param attributes the queue attributes, used for the message size
+     * @param producerId the ID stamped on messages sent through this tracer
+     *
+     * @throws InvalidValueException if the message size cannot hold the header.
+     * @since 1.1
+     */
+    public JPMQTracer(JPMQ queue, JPMQAttributes attributes, int producerId) throws InvalidValueException {
+        if (attributes.getmessageSize() < HEADER_SIZE)
+            throw new InvalidValueException("Message size is too small to hold a trace header.");
+
+        this.queue = queue;
+        this.producerId = producerId;
+        this.messageSize = attributes.getmessageSize();
+        this.sendBuffer = ByteBuffer.allocateDirect(messageSize);
+        this.receiveBuffer = ByteBuffer.allocateDirect(messageSize);
+    }
+
+    /**
+     * Sends a traced message from a direct buffer. The first HEADER_SIZE
+     * remaining bytes of the buffer are reserved for the header and are
+     * overwritten; the message follows them. The buffer's position is
+     * advanced to its limit once the message is sent.
+     *
+     * @param buffer the direct buffer holding the reserved header and the message
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @throws IllegalArgumentException if the buffer is not direct, has no room for the header or the priority is invalid.
+     * @since 1.1
+     */
+    public void send(ByteBuffer buffer, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct.");
+        if (buffer.remaining() < HEADER_SIZE)
+            throw new IllegalArgumentException("Buffer has no room for the trace header.");
+        if (priority < 0 || priority >= JPMQ.PRIORITY_MAX)
+            throw new IllegalArgumentException("Invalid message priority.");
+
+        int offset = buffer.position();
+        synchronized (sendLock) {
+            if (priority >= sequences.length)
+                sequences = Arrays.copyOf(sequences, priority + 1);
+            buffer.putInt(offset + PRODUCER_OFFSET, producerId);
+            buffer.putInt(offset + SEQUENCE_OFFSET, sequences[priority]);
+            nativeTracedSend(queue.getDescriptor(), buffer, offset, buffer.remaining(), priority);
+            sequences[priority]++;
+            sent++;
+        }
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Sends a traced string encoded as UTF-8.
+     *
+     * @param message the message to send
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @since 1.1
+     */
+    public void send(String message, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException {
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (HEADER_SIZE + bytes.length > messageSize)
+            throw new MessageLengthException("Provided message is longer than queue message size.");
+
+        synchronized (sendLock) {
+            sendBuffer.clear();
+            sendBuffer.position(HEADER_SIZE);
+            sendBuffer.put(bytes);
+            sendBuffer.flip();
+            send(sendBuffer, priority);
+        }
+    }
+
+    /**
+     * Receives a traced message into a direct buffer and records its
+     * residence time and sequence. The header and message are written at the
+     * buffer's position, which is then advanced past them, so the message
+     * starts HEADER_SIZE bytes after the original position.
+     *
+     * @param buffer the direct buffer to receive into, with at least the queue message size remaining
+     * @return the length of the message received, excluding the header
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if the message has no trace header.
+     * @throws IllegalArgumentException if the buffer is not direct.
+     * @since 1.1
+     */
+    public int receive(ByteBuffer buffer) throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException, InvalidValueException {
+
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer must be direct.");
+
+        int offset = buffer.position();
+        synchronized (receiveLock) {
+            int length = nativeTracedReceive(queue.getDescriptor(), buffer, offset, buffer.remaining(), trace);
+            if (length < HEADER_SIZE)
+                throw new InvalidValueException("Message has no trace header.");
+
+            histogram.record(trace[0]);
+            received++;
+
+            int producer = buffer.getInt(offset + PRODUCER_OFFSET);
+            int seq = buffer.getInt(offset + SEQUENCE_OFFSET);
+            int slot = producers.slot((long) producer << 32 | trace[1]);
+            if (producers.seen[slot]) {
+                int skipped = seq - (producers.last[slot] + 1);
+                if (skipped > 0)
+                    lost += skipped;
+                else if (skipped < 0)
+                    reordered++;
+            }
+            if (!producers.seen[slot] || seq - producers.last[slot] > 0)
+                producers.last[slot] = seq;
+            producers.seen[slot] = true;
+
+            buffer.position(offset + length);
+            return length - HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Receives a traced message and decodes it as UTF-8.
+     *
+     * @return the message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @throws InvalidValueException if the message has no trace header.
+     * @since 1.1
+     */
+    public String receive() throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException, InvalidValueException {
+
+        synchronized (receiveLock) {
+            receiveBuffer.clear();
+            int length = receive(receiveBuffer);
+            byte[] bytes = new byte[length];
+            receiveBuffer.position(HEADER_SIZE);
+            receiveBuffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns the histogram of residence times in nanoseconds. The histogram
+     * is updated by the receiving thread.
+     *
+     * @return the residence time histogram
+     * @since 1.1
+     */
+    public JPMQHistogram getResidenceHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Returns the number of messages sent through this tracer.
+     *
+     * @return the number of messages sent
+     * @since 1.1
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of traced messages received.
+     *
+     * @return the number of messages received
+     * @since 1.1
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the number of messages missing from the sequence of each
+     * producer and priority. A message counted as lost which arrives later is
+     * also counted as reordered.
+     *
+     * @return the number of messages lost
+     * @since 1.1
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * Returns the number of messages which arrived after a later message from
+     * the same producer at the same priority.
+     *
+     * @return the number of messages reordered
+     * @since 1.1
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * SequenceTable maps producer IDs and priorities, packed into a long, to
+     * the last sequence number received, using open addressing so that
+     * lookups do not allocate.
+     */
+    private static final class SequenceTable {
+        long[] keys = new long[16];
+        int[] last = new int[16];
+        boolean[] seen = new boolean[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        /**
+         * Returns the slot for a producer and priority, adding it if necessary.
+         */
+        int slot(long key) {
+            int mask = keys.length - 1;
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (used[i]) {
+                if (keys[i] == key)
+                    return i;
+                i = (i + 1) & mask;
+            }
+
+            if (size * 2 >= keys.length) {
+                grow();
+                return slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldLast = last;
+            boolean[] oldSeen = seen;
+            boolean[] oldUsed = used;
+
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            last = new int[capacity];
+            seen = new boolean[capacity];
+            used = new boolean[capacity];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = slot(oldKeys[i]);
+                    last[slot] = oldLast[i];
+                    seen[slot] = oldSeen[i];
+                }
+            }
+        }
+    }
+
+    /***************************************************/
+    /*                     Native                      */
+    /***************************************************/
+
+    /**
+     * Native wrapper for clock_gettime(CLOCK_MONOTONIC, struct timespec *tp) and
+     * mq_send(mqd_t mqdes, const char *msg_ptr, size_t msg_len, unsigned int msg_prio);
+     * Stamps the header with the current time and sends the message.
+     *
+     * @param descriptor the message queue descriptor
+     * @param buffer the direct buffer holding the header and message
+     * @param offset the offset of the header within the buffer
+     * @param length the length of the header and message
+     * @param priority the priority of the message
+     *
+     * @throws QueueFullException if the queue is full.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the message length is greater than the queue message length.
+     * @since 1.1
+     */
+    private native void nativeTracedSend(byte[] descriptor, ByteBuffer buffer, int offset, int length, int priority) throws
+        QueueFullException, BadDescriptorException, InterruptException,
+        MessageLengthException;
+
+    /**
+     * Native wrapper for mq_receive(mqd_t mqdes, char *msg_ptr, size_t msg_len, unsigned int *msg_prio) and
+     * clock_gettime(CLOCK_MONOTONIC, struct timespec *tp);
+     * Receives a message and computes the time it spent in the queue.
+     *
+     * @param descriptor the message queue descriptor
+     * @param buffer the direct buffer to receive into
+     * @param offset the offset within the buffer to write the message
+     * @param capacity the number of bytes available from the offset
+     * @param trace receives the residence time in nanoseconds and the priority of the message
+     * @return the length of the header and message received
+     *
+     * @throws QueueEmptyException if the queue is empty.
+     * @throws BadDescriptorException if the file descriptor is invalid (may be caused by another process unlinking).
+     * @throws InterruptException if the call is interrupted.
+     * @throws MessageLengthException if the buffer size is less than the queue message size.
+     * @since 1.1
+     */
+    private native int nativeTracedReceive(byte[] descriptor, ByteBuffer buffer, int offset, int capacity,
+                                           long[] trace) throws
+        QueueEmptyException, BadDescriptorException, InterruptException,
+        MessageLengthException;
+}
@@ -0,0 +1,432 @@
+package net.adambruce.jpmq.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import net.adambruce.jpmq.JPMQ;
+import net.adambruce.jpmq.JPMQAttributes;
+import net.adambruce.jpmq.JPMQHistogram;
+import net.adambruce.jpmq.QueueDoesNotExistException;
+
+/**
+ * JPMQLoadTool drives a message queue from separate producer and consumer
+ * JVM processes and reports throughput and latency.
+ *
+ * Producers send on a fixed schedule at the requested rate. Each message
+ * carries the time at which it was scheduled to be sent rather than the time
+ * it was actually sent, so a producer held up by a full queue does not hide
+ * the delay from the latency figures (coordinated omission). Latency is
+ * measured with System.nanoTime, which on Linux reads CLOCK_MONOTONIC and is
+ * comparable between processes on the same host.
+ *
+ * For example:
+ * <pre>
+ * java -Djava.library.path=. -cp jpmq-1.0.jar net.adambruce.jpmq.tools.JPMQLoadTool \
+ *     --producers 2 --consumers 2 --rate 50000 --size uniform:64:1024 --priorities 4
+ * </pre>
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public final class JPMQLoadTool {
+
+    /** Every message starts with its scheduled send time */
+    private static final int HEADER_SIZE = 8;
+    /** The scheduled send time of the message which stops a consumer */
+    private static final long STOP = -1L;
+    /** Time allowed for child JVMs to start before the run begins */
+    private static final long START_DELAY_NANOS = 2000000000L;
+    /** The number of priorities Linux supports by default */
+    private static final int MAX_PRIORITIES = 32768;
+
+    private static final String USAGE =
+        "Usage: JPMQLoadTool [options]\n" +
+        "  --help                print this message\n" +
+        "  --queue NAME          queue name (default /jpmq-load)\n" +
+        "  --producers N         producer processes (default 1)\n" +
+        "  --consumers N         consumer processes (default 1)\n" +
+        "  --rate N              messages per second per producer, 0 for unlimited (default 10000)\n" +
+        "  --duration SECONDS    length of the run (default 10)\n" +
+        "  --size SPEC           fixed:N, uniform:MIN:MAX or exp:MEAN bytes (default fixed:64)\n" +
+        "  --priorities N        send with priorities chosen uniformly from 0 to N-1 (default 1)\n" +
+        "  --max-messages N      queue capacity in messages (default 10)\n" +
+        "  --message-size N      queue message size in bytes (default 8192)\n";
+
+    private JPMQLoadTool() {
+    }
+
+    /**
+     * Runs the tool.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("--help")) {
+            System.out.print(USAGE);
+            return;
+        }
+
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            switch (options.role) {
+                case "producer":
+                    produce(options);
+                    break;
+                case "consumer":
+                    consume(options);
+                    break;
+                default:
+                    System.exit(coordinate(options, args));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the queue, runs the producer and consumer processes and prints
+     * the report.
+     *
+     * @return the exit status
+     */
+    private static int coordinate(Options options, String[] args) throws Exception {
+        try {
+            JPMQ stale = new JPMQ(options.queue, JPMQ.O_WRONLY);
+            stale.unlink();
+            stale.close();
+        } catch (QueueDoesNotExistException e) {
+            /* Nothing to clean up from a previous run */
+        }
+
+        JPMQAttributes attributes = new JPMQAttributes(0, options.maxMessages, options.messageSize, 0);
+        JPMQ queue = new JPMQ(options.queue, JPMQ.O_CREAT | JPMQ.O_EXCL | JPMQ.O_RDWR, 0600, attributes);
+        List<Process> consumers = new ArrayList<>();
+        List<Process> producers = new ArrayList<>();
+        try {
+            long start = System.nanoTime() + START_DELAY_NANOS;
+
+            for (int i = 0; i < options.consumers; i++)
+                consumers.add(launch("consumer", i, start, args));
+            for (int i = 0; i < options.producers; i++)
+                producers.add(launch("producer", i, start, args));
+
+            long sent = 0, sentBytes = 0;
+            for (Process producer : producers) {
+                long[] result = result(producer, "SENT", 2);
+                sent += result[0];
+                sentBytes += result[1];
+            }
+
+            ByteBuffer stop = ByteBuffer.allocateDirect(HEADER_SIZE);
+            for (int i = 0; i < options.consumers; i++) {
+                stop.clear();
+                stop.putLong(0, STOP);
+                queue.send(stop, 0);
+            }
+
+            long received = 0, receivedBytes = 0;
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            JPMQHistogram latency = new JPMQHistogram();
+            for (Process consumer : consumers) {
+                String line = line(consumer, "RECEIVED");
+                String[] fields = line.split(" ");
+                received += Long.parseLong(fields[1]);
+                receivedBytes += Long.parseLong(fields[2]);
+                if (Long.parseLong(fields[1]) > 0) {
+                    first = Math.min(first, Long.parseLong(fields[3]));
+                    last = Math.max(last, Long.parseLong(fields[4]));
+                }
+                latency.add(JPMQHistogram.decode(fields[5]));
+            }
+
+            double seconds = received > 0 ? (last - first) / 1e9 : 0;
+            System.out.printf("queue=%s producers=%d consumers=%d maxMessages=%d messageSize=%d%n",
+                options.queue, options.producers, options.consumers, options.maxMessages, options.messageSize);
+            System.out.printf("sent=%d (%d bytes) received=%d (%d bytes) over %.3fs%n",
+                sent, sentBytes, received, receivedBytes, seconds);
+            if (seconds > 0)
+                System.out.printf("throughput=%.0f msg/s %.2f MB/s%n",
+                    received / seconds, receivedBytes / seconds / 1e6);
+            System.out.printf("latency us (corrected for coordinated omission): " +
+                "min=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f p99.99=%.1f max=%.1f%n",
+                latency.getMin() / 1e3,
+                latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(90) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3,
+                latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getValueAtPercentile(99.99) / 1e3,
+                latency.getMax() / 1e3);
+
+            if (received != sent) {
+                System.out.printf("ERROR: %d messages were not received%n", sent - received);
+                return 1;
+            }
+            return 0;
+        } finally {
+            /* Children still running after a failure would block on the unlinked queue forever */
+            for (Process process : consumers)
+                process.destroyForcibly();
+            for (Process process : producers)
+                process.destroyForcibly();
+            queue.unlink();
+            queue.close();
+        }
+    }
+
+    /**
+     * Sends messages on schedule until the end of the run.
+     */
+    private static void produce(Options options) throws Exception {
+        JPMQ queue = new JPMQ(options.queue, JPMQ.O_WRONLY);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(options.messageSize);
+        Random random = new Random(options.id);
+        SizeDistribution sizes = SizeDistribution.parse(options.size, options.messageSize);
+
+        long end = options.start + options.duration * 1000000000L;
+        long sent = 0, bytes = 0;
+
+        waitUntil(options.start);
+        while (true) {
+            long scheduled;
+            if (options.rate > 0) {
+                /* Computed from the start each time so the rounding error does not accumulate */
+                scheduled = options.start + sent * 1000000000L / options.rate;
+                if (scheduled >= end)
+                    break;
+                waitUntil(scheduled);
+            } else {
+                scheduled = System.nanoTime();
+                if (scheduled >= end)
+                    break;
+            }
+
+            int size = sizes.next(random);
+            buffer.clear();
+            buffer.putLong(0, scheduled);
+            buffer.limit(size);
+            queue.send(buffer, options.priorities > 1 ? random.nextInt(options.priorities) : 0);
+            sent++;
+            bytes += size;
+        }
+
+        queue.close();
+        System.out.println("SENT " + sent + " " + bytes);
+    }
+
+    /**
+     * Receives messages until a stop message arrives.
+     */
+    private static void consume(Options options) throws Exception {
+        JPMQ queue = new JPMQ(options.queue, JPMQ.O_RDONLY);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(options.messageSize);
+        JPMQHistogram latency = new JPMQHistogram();
+        long received = 0, bytes = 0, first = 0, last = 0;
+
+        while (true) {
+            buffer.clear();
+            int length = queue.receive(buffer);
+            long now = System.nanoTime();
+            long scheduled = buffer.getLong(0);
+            if (scheduled == STOP)
+                break;
+
+            latency.record(now - scheduled);
+            if (received++ == 0)
+                first = now;
+            last = now;
+            bytes += length;
+        }
+
+        queue.close();
+        System.out.println("RECEIVED " + received + " " + bytes + " " + first + " " + last + " " + latency.encode());
+    }
+
+    /**
+     * Launches a producer or consumer JVM with the same options, library path
+     * and classpath as this one.
+     */
+    private static Process launch(String role, int id, long start, String[] args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(JPMQLoadTool.class.getName());
+        for (String arg : args)
+            command.add(arg);
+        command.add("--role");
+        command.add(role);
+        command.add("--id");
+        command.add(Integer.toString(id));
+        command.add("--start");
+        command.add(Long.toString(start));
+
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /**
+     * Waits for a child process and returns its result line.
+     */
+    private static String line(Process process, String prefix) throws Exception {
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (line.startsWith(prefix + " "))
+                    result = line;
+        }
+        if (process.waitFor() != 0 || result == null)
+            throw new IllegalStateException("A " + prefix.toLowerCase() + " process failed.");
+        return result;
+    }
+
+    /**
+     * Waits for a child process and returns the numbers on its result line.
+     */
+    private static long[] result(Process process, String prefix, int count) throws Exception {
+        String[] fields = line(process, prefix).split(" ");
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++)
+            values[i] = Long.parseLong(fields[i + 1]);
+        return values;
+    }
+
+    /**
+     * Waits until the given time, parking while the wait is long and spinning
+     * for the final stretch.
+     */
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100000L)
+                LockSupport.parkNanos(remaining - 50000L);
+        }
+    }
+
+    /**
+     * Options holds the parsed command line.
+     */
+    private static final class Options {
+        String queue = "/jpmq-load";
+        int producers = 1;
+        int consumers = 1;
+        int rate = 10000;
+        int duration = 10;
+        String size = "fixed:64";
+        int priorities = 1;
+        int maxMessages = 10;
+        int messageSize = 8192;
+
+        /* Set by the coordinator for child processes */
+        String role = "coordinator";
+        int id;
+        long start;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                try {
+                    switch (option) {
+                        case "--queue":        options.queue = value; break;
+                        case "--producers":    options.producers = Integer.parseInt(value); break;
+                        case "--consumers":    options.consumers = Integer.parseInt(value); break;
+                        case "--rate":         options.rate = Integer.parseInt(value); break;
+                        case "--duration":     options.duration = Integer.parseInt(value); break;
+                        case "--size":         options.size = value; break;
+                        case "--priorities":   options.priorities = Integer.parseInt(value); break;
+                        case "--max-messages": options.maxMessages = Integer.parseInt(value); break;
+                        case "--message-size": options.messageSize = Integer.parseInt(value); break;
+                        case "--role":         options.role = value; break;
+                        case "--id":           options.id = Integer.parseInt(value); break;
+                        case "--start":        options.start = Long.parseLong(value); break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + option);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+                }
+            }
+
+            if (options.producers < 1 || options.consumers < 1)
+                throw new IllegalArgumentException("At least one producer and one consumer are required");
+            if (options.rate < 0)
+                throw new IllegalArgumentException("Rate must not be negative");
+            if (options.priorities < 1 || options.priorities > MAX_PRIORITIES)
+                throw new IllegalArgumentException("Priorities must be between 1 and " + MAX_PRIORITIES);
+            if (options.messageSize < HEADER_SIZE)
+                throw new IllegalArgumentException("Message size must be at least " + HEADER_SIZE);
+            SizeDistribution.parse(options.size, options.messageSize);
+            return options;
+        }
+    }
+
+    /**
+     * SizeDistribution chooses message sizes, clamped between the header size
+     * and the queue message size.
+     */
+    private static final class SizeDistribution {
+        private final char kind;
+        private final int a;
+        private final int b;
+        private final int max;
+
+        private SizeDistribution(char kind, int a, int b, int max) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.max = max;
+        }
+
+        static SizeDistribution parse(String spec, int max) {
+            String[] parts = spec.split(":");
+            try {
+                if (parts[0].equals("fixed") && parts.length == 2)
+                    return new SizeDistribution('f', Integer.parseInt(parts[1]), 0, max);
+                if (parts[0].equals("uniform") && parts.length == 3)
+                    return new SizeDistribution('u', Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), max);
+                if (parts[0].equals("exp") && parts.length == 2)
+                    return new SizeDistribution('e', Integer.parseInt(parts[1]), 0, max);
+            } catch (NumberFormatException e) {
+                /* Reported below */
+            }
+            throw new IllegalArgumentException("Invalid size distribution " + spec);
+        }
+
+        int next(Random random) {
+            int size;
+            switch (kind) {
+                case 'u':
+                    size = a + random.nextInt(Math.max(1, b - a + 1));
+                    break;
+                case 'e':
+                    size = (int) (-a * Math.log(1.0 - random.nextDouble()));
+                    break;
+                default:
+                    size = a;
+            }
+            return Math.max(HEADER_SIZE, Math.min(size, max));
+        }
+    }
+}
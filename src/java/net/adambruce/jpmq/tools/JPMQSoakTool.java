@@ -0,0 +1,337 @@
+package net.adambruce.jpmq.tools;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import net.adambruce.jpmq.JPMQ;
+import net.adambruce.jpmq.JPMQAttributes;
+import net.adambruce.jpmq.JPMQMessageHandler;
+import net.adambruce.jpmq.JPMQScheduler;
+import net.adambruce.jpmq.JPMQTimespec;
+import net.adambruce.jpmq.JPMQTopic;
+import net.adambruce.jpmq.JPMQTracer;
+import net.adambruce.jpmq.QueueDoesNotExistException;
+import net.adambruce.jpmq.QueueEmptyException;
+
+/**
+ * JPMQSoakTool repeats every native call for a long run and fails if the
+ * process keeps growing, catching native memory leaks in the JNI layer.
+ *
+ * Each round sends and receives with the string, timed and direct buffer
+ * calls, publishes a non-ASCII message through a topic and checks that it
+ * arrives intact, sends and receives through a tracer, polls through a
+ * scheduler, reads and sets the queue attributes, receives from an empty
+ * queue to exercise the error paths, and periodically opens, closes and
+ * unlinks queues by name, including names which do not exist.
+ * The resident set size and data segment size are read from
+ * /proc/self/status at every sample and compared with the values after
+ * warm-up, so the tool only runs on Linux. A small fixed Java heap keeps the
+ * garbage collector from masking native growth, for example:
+ * <pre>
+ * java -Xms64m -Xmx64m -Djava.library.path=. -cp jpmq-1.0.jar \
+ *     net.adambruce.jpmq.tools.JPMQSoakTool --operations 200000000
+ * </pre>
+ *
+ * The tool exits with status 0 if the growth stayed within the limit, 1 if
+ * it did not and 2 if the options were invalid.
+ *
+ * @since 1.1
+ * @author Adam Bruce
+ */
+public final class JPMQSoakTool {
+
+    /** The number of operations in each round of calls */
+    private static final int ROUND = 19;
+    /** The number of rounds between opening and unlinking queues by name */
+    private static final int NAMED_INTERVAL = 128;
+
+    private static final String USAGE =
+        "Usage: JPMQSoakTool [options]\n" +
+        "  --help                print this message\n" +
+        "  --queue NAME          queue name (default /jpmq-soak)\n" +
+        "  --operations N        number of operations to run (default 100000000)\n" +
+        "  --warmup N            operations before the baseline is taken (default 5000000)\n" +
+        "  --sample N            operations between samples (default 1000000)\n" +
+        "  --max-growth KB       allowed growth in resident set size after warm-up (default 16384)\n" +
+        "  --message-size N      queue message size in bytes, at least 16 (default 256)\n";
+
+    private JPMQSoakTool() {
+    }
+
+    /**
+     * Runs the tool.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("--help")) {
+            System.out.print(USAGE);
+            return;
+        }
+
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (!Files.isReadable(Paths.get("/proc/self/status"))) {
+            System.err.println("JPMQSoakTool requires /proc/self/status");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            System.exit(soak(options));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the operations, printing a sample line every sample interval.
+     *
+     * @return the exit status
+     */
+    private static int soak(Options options) throws Exception {
+        try {
+            JPMQ stale = new JPMQ(options.queue, JPMQ.O_WRONLY);
+            stale.unlink();
+            stale.close();
+        } catch (QueueDoesNotExistException e) {
+            /* Nothing to clean up from a previous run */
+        }
+
+        JPMQAttributes attributes = new JPMQAttributes(0, 10, options.messageSize, 0);
+        JPMQ queue = new JPMQ(options.queue, JPMQ.O_CREAT | JPMQ.O_EXCL | JPMQ.O_RDWR | JPMQ.O_NONBLOCK,
+                              0600, attributes);
+        String missing = options.queue + "-missing";
+
+        char[] text = new char[options.messageSize];
+        Arrays.fill(text, 'x');
+        String message = new String(text);
+        char[] euros = new char[options.messageSize / 3];
+        Arrays.fill(euros, '\u20ac');
+        String encoded = new String(euros);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(options.messageSize);
+
+        JPMQTopic topic = new JPMQTopic(JPMQTopic.DROP, 0);
+        topic.subscribe(queue);
+        JPMQTracer tracer = new JPMQTracer(queue, attributes, 1);
+        JPMQScheduler scheduler = new JPMQScheduler(options.messageSize, 1);
+        scheduler.add(queue, 1);
+        JPMQMessageHandler handler = (source, received) -> { };
+        JPMQAttributes flags = new JPMQAttributes(JPMQ.O_NONBLOCK, 0, 0, 0);
+
+        System.out.println("operations rss_kb data_kb direct_kb");
+        long baseline = -1;
+        long peakGrowth = 0;
+        long operations = 0;
+        long rounds = 0;
+
+        try {
+            while (operations < options.operations) {
+                JPMQTimespec timeout = deadline();
+                long sampleEnd = Math.min(options.operations, operations + options.sample);
+
+                while (operations < sampleEnd) {
+                    queue.send(message, 0);
+                    queue.receive();
+                    try {
+                        queue.receive();
+                    } catch (QueueEmptyException e) {
+                        /* Exercises the receive error path */
+                    }
+
+                    queue.timedSend(message, 0, timeout);
+                    queue.timedReceive(timeout);
+                    try {
+                        queue.timedReceive(timeout);
+                    } catch (QueueEmptyException e) {
+                        /* Exercises the timed receive error path */
+                    }
+
+                    buffer.clear();
+                    queue.send(buffer, 0);
+                    buffer.clear();
+                    queue.receive(buffer);
+
+                    topic.publish(encoded, 0);
+                    if (!encoded.equals(queue.receive()))
+                        throw new IllegalStateException("Published message was corrupted.");
+                    topic.timedPublish(encoded, 0, timeout);
+                    if (!encoded.equals(queue.receive()))
+                        throw new IllegalStateException("Published message was corrupted.");
+
+                    buffer.clear();
+                    tracer.send(buffer, 0);
+                    buffer.clear();
+                    tracer.receive(buffer);
+                    try {
+                        buffer.clear();
+                        tracer.receive(buffer);
+                    } catch (QueueEmptyException e) {
+                        /* Exercises the traced receive error path */
+                    }
+
+                    queue.send(message, 0);
+                    scheduler.poll(handler, 0);
+
+                    queue.getAttributes();
+                    queue.setAttributes(flags);
+                    operations += ROUND;
+
+                    if (++rounds % NAMED_INTERVAL == 0)
+                        operations += named(options.queue, missing);
+                }
+
+                long[] status = status();
+                System.out.println(operations + " " + status[0] + " " + status[1] + " " + directKilobytes());
+
+                if (operations >= options.warmup) {
+                    if (baseline < 0)
+                        baseline = status[0];
+                    peakGrowth = Math.max(peakGrowth, status[0] - baseline);
+                }
+            }
+        } finally {
+            queue.unlink();
+            queue.close();
+        }
+
+        if (baseline < 0) {
+            System.out.println("FAIL: the run ended before warm-up completed");
+            return 1;
+        }
+        if (peakGrowth > options.maxGrowth) {
+            System.out.println("FAIL: resident set grew by " + peakGrowth + " KB after warm-up (limit "
+                               + options.maxGrowth + " KB)");
+            return 1;
+        }
+        System.out.println("PASS: resident set grew by " + peakGrowth + " KB after warm-up");
+        return 0;
+    }
+
+    /**
+     * Opens and closes the queue by name, and opens and unlinks a queue which
+     * does not exist.
+     *
+     * @return the number of operations performed
+     */
+    private static int named(String name, String missing) throws Exception {
+        JPMQ reopened = new JPMQ(name, JPMQ.O_RDONLY | JPMQ.O_NONBLOCK);
+        reopened.close();
+
+        try {
+            new JPMQ(missing, JPMQ.O_RDONLY);
+        } catch (QueueDoesNotExistException e) {
+            /* Exercises the open error path */
+        }
+
+        JPMQ created = new JPMQ(missing, JPMQ.O_CREAT | JPMQ.O_RDONLY, 0600,
+                                new JPMQAttributes(0, 1, 16, 0));
+        created.unlink();
+        created.close();
+        try {
+            created.unlink();
+        } catch (QueueDoesNotExistException e) {
+            /* Exercises the unlink error path */
+        }
+        return 5;
+    }
+
+    /**
+     * Returns a timeout one minute from now. The queue is non-blocking, so
+     * the timed calls never wait for it.
+     */
+    private static JPMQTimespec deadline() {
+        long millis = System.currentTimeMillis() + 60000;
+        return new JPMQTimespec((int) (millis / 1000), (int) (millis % 1000) * 1000000);
+    }
+
+    /**
+     * Reads the resident set size and data segment size of this process in
+     * kilobytes.
+     */
+    private static long[] status() throws IOException {
+        long[] result = new long[2];
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+            if (line.startsWith("VmRSS:"))
+                result[0] = kilobytes(line);
+            else if (line.startsWith("VmData:"))
+                result[1] = kilobytes(line);
+        }
+        return result;
+    }
+
+    private static long kilobytes(String line) {
+        String[] fields = line.trim().split("\\s+");
+        return Long.parseLong(fields[1]);
+    }
+
+    /**
+     * Returns the memory used by direct buffers in kilobytes.
+     */
+    private static long directKilobytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct"))
+                return pool.getMemoryUsed() / 1024;
+        }
+        return 0;
+    }
+
+    /**
+     * Options holds the parsed command line.
+     */
+    private static final class Options {
+        String queue = "/jpmq-soak";
+        long operations = 100000000L;
+        long warmup = 5000000L;
+        long sample = 1000000L;
+        long maxGrowth = 16384;
+        int messageSize = 256;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                try {
+                    switch (option) {
+                        case "--queue":        options.queue = value; break;
+                        case "--operations":   options.operations = Long.parseLong(value); break;
+                        case "--warmup":       options.warmup = Long.parseLong(value); break;
+                        case "--sample":       options.sample = Long.parseLong(value); break;
+                        case "--max-growth":   options.maxGrowth = Long.parseLong(value); break;
+                        case "--message-size": options.messageSize = Integer.parseInt(value); break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + option);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+                }
+            }
+
+            if (options.operations < 1 || options.sample < 1)
+                throw new IllegalArgumentException("Operations and sample interval must be at least 1");
+            if (options.warmup >= options.operations)
+                throw new IllegalArgumentException("Warm-up must be shorter than the run");
+            if (options.messageSize < JPMQTracer.HEADER_SIZE)
+                throw new IllegalArgumentException("Message size must be at least " + JPMQTracer.HEADER_SIZE);
+            return options;
+        }
+    }
+}